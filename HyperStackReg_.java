@@ -1,6 +1,35 @@
 /*
-Version 5.7: December 6, 2022
-starting version: 5.6
+Version 5.8
+starting version: 5.7
+
+Changes in version 5.8
+	Images can be handed over to TurboReg in memory (-window) instead of through temporary TIFF files
+	Transformations are kept in a binary file with one record per (Z, T); the text file is exported from it
+	The apply phase warps straight from the stored landmarks; estimation no longer warps the duplicated hyperstack
+	The registered hyperstack is allocated once in its final order instead of being concatenated series by series
+	The registered hyperstack can be streamed plane by plane to a TIFF file on disk and reopened as a virtual hyperstack
+	The input hyperstack is no longer duplicated; frames are read, and channels merged, plane by plane when needed
+	Z-slices are registered concurrently on a configurable number of threads
+	The backward and forward chains from the target frame are registered as two independent tasks
+	Planes of all channels, slices and frames are warped concurrently in the apply phase
+	The transformation file also keeps the composed transform of every frame; each plane is warped from its own record
+	Gray planes are warped in Java (nearest neighbor, linear or cubic B-spline) at their own bit depth; TurboReg remains the default when it is installed,
+		so that existing macros give the same pixels, and cubic B-spline in Java is the default otherwise
+	RGB planes are warped in one pass over their three components; indexed colors are mapped back through a cached inverse LUT
+	Transformations can be estimated by a built-in multi-resolution aligner; TurboReg remains an option and is no longer required
+	Translations can be estimated by phase correlation of every frame with the target frame, whose FFT is computed once
+	Transformations can be estimated on binned frames (1/2, 1/4, 1/8) and scaled back to full resolution
+	An area ROI on the hyperstack restricts the estimation to its bounding rectangle
+	One transformation per frame can be estimated from a max or mean Z projection, or from a single Z-slice, and applied to all Z-slices
+	Transformations can be estimated on keyframes only, at a fixed interval or adapted to the drift, and interpolated in between
+	Frames that barely differ from the last registered one can keep its transformation without being registered; unmoved planes are copied
+	The registration of a frame can start from the motion of the frames before it; the built-in aligner logs its iterations
+	Several gray channels can be merged for the estimation into a 32-bit weighted sum at their own bit depth instead of RGB
+	The color statistics behind the RGB-to-gray weights are gathered on several threads, optionally from an evenly spaced sample of pixels
+	Each chain reuses its proxy frames, gray frames, pyramid levels, gradients, normal equations and landmark arrays from frame to frame instead of allocating them
+	The built-in aligner keeps the pyramid of each source frame and reuses it when that frame becomes the next target
+	Optionally, each frame is warped as soon as its transformation is known, while the next frames are still being registered;
+		the planes of a virtual hyperstack that the estimation has read are then warped without being read from disk again
 
 Changes in version 5.7
 	Version 5.6 was limited to a maximum of 5 channels in the hyperstack. Removed this limitation in version 5.7
@@ -14,47 +43,89 @@ import ij.CompositeImage;
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.VirtualStack;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
+import ij.gui.Roi;
 import ij.gui.StackWindow;
+import ij.io.FileInfo;
 import ij.io.FileSaver;
+import ij.macro.Interpreter;
 import ij.plugin.PlugIn;
-import ij.plugin.Duplicator;
-import ij.plugin.Concatenator;
-import ij.plugin.HyperStackConverter; 
-import ij.plugin.SubHyperstackMaker; // for using the SubHyperstackMaker().makeSubhyperstack() method
-import ij.process.Blitter;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageConverter;
+import ij.process.ImageProcessor;
 import ij.process.LUT;
 import ij.process.ShortProcessor;
+import ij.util.ThreadUtil;
+import ij.util.Tools;
 
 // Java 1.1
+import java.awt.Rectangle;
 import java.awt.image.IndexColorModel;
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.String; // added this to use function lastIndexOf to name the final hyperstack
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class HyperStackReg_	implements PlugIn {
-	private String version = "5.7";
+	private String version = "5.8";
 	private static final double TINY = 	(double)Float.intBitsToFloat((int)0x33FFFFFF);
-	private String loadPathAndFilename="";
-	private boolean saveTransform;
 	private String savePath, saveFile, imageTitle;
-	private int tSlice, transformNumber, numCh, numSl, numFr;
+	private int tSlice, numCh, numSl, numFr;
+	private TransformStore transformStore;
 	private 	LUT[] luts = null;
+	private boolean inMemory;
+	private int interpolation;
+	private boolean turboRegWarp;
+	private InverseLut inverseLut;
+	private int registration;
+	private int binning;
+	private Rectangle estimationRect;
+	private int zMode; // 0: each Z-slice, 1: max projection, 2: mean projection, 3: single Z-slice
+	private int zEstimation;
+	private int keyframeInterval;
+	private double keyframeThreshold;
+	private final AtomicInteger keyframes = new AtomicInteger(0);
+	private double motionTolerance;
+	private final AtomicInteger skippedFrames = new AtomicInteger(0);
+	private boolean warmStart;
+	private final AtomicInteger alignerIterations = new AtomicInteger(0);
+	private int channelMerge; // 0: RGB composite, 1: weighted sum, normalized, 2: weighted sum, given weights
+	private double[] channelWeights;
+	private long statisticsBudget;
+	private int statisticsThreads = 1;
+	private ArrayBlockingQueue<int[]> readyFrames; // (z, t) of the frames whose transformation is written; null unless pipelined
+	private Map<Integer, ImageProcessor> readPlanes; // planes of a virtual input read by the chains and not warped yet; null otherwise
+	private final AtomicBoolean warpFailed = new AtomicBoolean(false);
+	private static final Object bridgeLock = new Object();
+	private static int bridgeUsers = 0;
+	private static boolean bridgeBatchMode;
 	
 	public void run (final String arg) {
 		Runtime.getRuntime().gc();
 		final ImagePlus imp = WindowManager.getCurrentImage();
-		ImagePlus impRGB=null, impCurr=null, impAllSlices=null, HS=null;
+		ImagePlus HS=null;
 		
 		if (imp == null) {
 			IJ.error("HyperStackReg", "ERROR:\n \nFirst open a stack or a hyperstack and then run this plugin!"); 
@@ -94,6 +165,22 @@ public class HyperStackReg_	implements PlugIn {
 		gd.addMessage("Click \"Help\" button below to go to HyperStackReg website,\nfor detailed instructions on how to use this plugin.");
 		final String[] transformationItem = {"Translation", "Rigid Body", "Scaled Rotation",	"Affine"};
 		gd.addChoice("Transformation:", transformationItem, "Affine");
+		final String[] interpolationItem = {"Nearest Neighbor", "Linear", "Cubic B-Spline", "TurboReg"};
+		gd.addChoice("Interpolation:", interpolationItem, isTurboRegInstalled() ? "TurboReg" : "Cubic B-Spline");
+		final String[] registrationItem = {"Built-in", "TurboReg", "Phase Correlation"};
+		gd.addChoice("Registration:", registrationItem, isTurboRegInstalled() ? "TurboReg" : "Built-in");
+		final String[] scaleItem = {"1", "1/2", "1/4", "1/8"};
+		gd.addChoice("Estimation scale:", scaleItem, scaleItem[0]);
+		final String[] zItem = {"Register each slice", "Max projection", "Mean projection", "Single slice"};
+		if(numSl > 1) {
+			gd.addChoice("Z-slices:", zItem, zItem[0]);
+			gd.addNumericField("Slice for estimation:", imp.getZ(), 0);
+		}
+		gd.addNumericField("Keyframe interval:", 1, 0, 6, "frames");
+		gd.addNumericField("Drift threshold:", 0, 1, 6, "pixels (0: fixed interval)");
+		gd.addNumericField("Motion tolerance:", 0, 1, 6, "% of the frame SD (0: register all frames)");
+		gd.setInsets(5, 5, 0);
+		gd.addCheckbox("Start each registration from the motion of the previous frames", false);
 		gd.setInsets(0, 0, 0);
 		gd.addMessage("Choose channels for transformation matrix computation:");
 
@@ -101,6 +188,15 @@ public class HyperStackReg_	implements PlugIn {
 			gd.setInsets(0, 20, 0);
 			gd.addCheckbox("Channel "+(i+1), true);
 		}
+		final String[] mergeItem = {"RGB composite", "Weighted sum, normalized", "Weighted sum, weights below"};
+		if(numCh > 1) {
+			gd.addChoice("Merge channels:", mergeItem, mergeItem[0]);
+			String weights = "1";
+			for(int i=1; i<numCh; i++)
+				weights = weights+",1";
+			gd.addStringField("Weights:", weights);
+		}
+		gd.addNumericField("Color statistics sample:", 0, 0, 9, "pixels (0: all)");
 /*	replaced this part of the code by the for loop above to make it work for any number of channels in version 5.7		
 		gd.setInsets(0, 20, 0);
 		gd.addCheckbox("Channel1", true);
@@ -125,19 +221,82 @@ public class HyperStackReg_	implements PlugIn {
 			gd.addCheckbox("Channel6", true);
 		}
 */
+		final String[] outputItem = {"Hyperstack in memory", "TIFF file on disk"};
+		gd.addChoice("Registered result:", outputItem, outputItem[0]);
+		final FileInfo fileInfo = imp.getOriginalFileInfo();
+		gd.addDirectoryField("Folder for TIFF file:", (fileInfo != null && fileInfo.directory != null && fileInfo.directory.length() > 0) ? fileInfo.directory : IJ.getDirectory("temp"));
+		gd.addNumericField("Threads:", Prefs.getThreads(), 0);
 		gd.setInsets(5, 5, 0);
+		gd.addCheckbox("Warp frames while registering (pipelined)", false);
+		gd.setInsets(0, 5, 0);
+		gd.addCheckbox("Memory hand-off to TurboReg (no temporary files)", true);
+		gd.setInsets(0, 5, 0);
 		gd.addCheckbox("Show processing details in the Log file", true);
 		gd.addHelp("https://github.com/ved-sharma/HyperStackReg");
 		gd.showDialog();
 		if (gd.wasCanceled()) 
 			return;
 		final int transformation = gd.getNextChoiceIndex();
+		interpolation = gd.getNextChoiceIndex();
+		turboRegWarp = interpolation == interpolationItem.length - 1;
+		registration = gd.getNextChoiceIndex();
+		binning = 1 << gd.getNextChoiceIndex();
+		zMode = 0;
+		zEstimation = 1;
+		if(numSl > 1) {
+			zMode = gd.getNextChoiceIndex();
+			zEstimation = (int)gd.getNextNumber();
+		}
+		keyframeInterval = (int)gd.getNextNumber();
+		keyframeThreshold = gd.getNextNumber();
+		motionTolerance = gd.getNextNumber() / 100.0;
+		warmStart = gd.getNextBoolean();
 		boolean [] boolCh = new boolean[numCh];
 		for(int i = 0; i<numCh; i++)
 			 boolCh[i] = gd.getNextBoolean();
+		channelMerge = 0;
+		channelWeights = null;
+		if(numCh > 1) {
+			channelMerge = gd.getNextChoiceIndex();
+			final String[] weights = Tools.split(gd.getNextString(), " ,;");
+			if(channelMerge == 2) {
+				channelWeights = new double[numCh];
+				for(int i = 0; i<numCh; i++)
+					channelWeights[i] = (i < weights.length) ? Tools.parseDouble(weights[i]) : Double.NaN;
+				for(int i = 0; i<numCh; i++) {
+					if(Double.isNaN(channelWeights[i])) {
+						IJ.error("HyperStackReg", "Please give one weight per channel, separated by commas.");
+						return;
+					}
+				}
+			}
+		}
+		if(imp.getBitDepth() == 24 || imp.getType() == ImagePlus.COLOR_256)
+			channelMerge = 0; // RGB and indexed color channels are merged as RGB
+		statisticsBudget = Math.max(0L, (long)gd.getNextNumber());
+		 final boolean toDisk = gd.getNextChoiceIndex() == 1;
+		 String outputFolder = gd.getNextString();
+		 final int threads = (int)gd.getNextNumber();
+		 final boolean pipelined = gd.getNextBoolean();
+		 inMemory = gd.getNextBoolean();
 		 boolean boolLog = gd.getNextBoolean();
+		if(registration == 2 && transformation != 0) {
+			IJ.error("HyperStackReg", "Phase Correlation registration estimates translations only.\nChoose the Translation transformation, or another registration.");
+			return;
+		}
+		if(zMode == 3 && (zEstimation < 1 || zEstimation > numSl)) {
+			IJ.error("HyperStackReg", "The slice for estimation must be between 1 and "+numSl+".");
+			return;
+		}
+		if(keyframeInterval < 1 || !(keyframeThreshold >= 0.0)) {
+			IJ.error("HyperStackReg", "The keyframe interval must be at least 1 and the drift threshold must not be negative.");
+			return;
+		}
+// Every Z-slice has its own chain of transformations, unless a single one per frame is estimated for all of them
+		final int numZChains = (zMode == 0) ? numSl : 1;
 
-// Duplicate or make subHyperstack from the original 8 or 16 bit Hyperstack; convert to RGB if more than 1 channels
+// Pick the channels used for the transformation matrix computation; the original Hyperstack is not duplicated,
+// each Z-slice is read frame by frame through a ProxyStack, merging the channels to RGB when more than 1 is used
         if(boolLog) {
         	IJ.log(imageTitle+" (C="+numCh+", Z="+numSl+", T="+numFr+")"); 
         	IJ.log("*****************************************************");
@@ -147,436 +306,332 @@ public class HyperStackReg_	implements PlugIn {
 			 sum_boolCh = sum_boolCh + (boolCh[i] ? 1 : 0);
         if(sum_boolCh == 0)
 			IJ.log("WARNING: No channel selected. Computing transformation matrix based on all the channels.");
+        final int[] proxyChannels;
         if(sum_boolCh == numCh || sum_boolCh == 0) {
-            if(boolLog)
-            	IJ.log("Duplicating Hyperstack for transformation matrix computation..."); 
-            impRGB = imp.duplicate();
+        	proxyChannels = new int[numCh];
+        	for(int i = 0; i<numCh; i++)
+        		proxyChannels[i] = i+1;
         }
-        else { 		// Extract user-selected channels and make subhyperstack        	
-    		final boolean hasC = numCh > 1;
-    		final boolean hasZ = numSl > 1;
-    		final boolean hasT = numFr > 1;
-            String cString = "";
-            if(!hasC)
-            	cString = "1";
-            else
-            	for(int i = 0; i<numCh; i++) {
-            		if(boolCh[i])
-            			cString = cString+","+(i+1);
-            	}
-            cString = cString.substring(1); // to remove the first comma
-    		final String zString = hasZ ? "1-"+numSl : "1";
-    		final String tString = hasT ? "1-"+numFr : "1";
-//    		IJ.log(cString); IJ.log(zString); IJ.log(tString);
-            if(boolLog)
-            	IJ.log("Duplicating channel(s): "+cString+" for transformation matrix computation..."); 
-    		impRGB = new SubHyperstackMaker().makeSubhyperstack(imp, cString, zString, tString);
+        else {
+        	proxyChannels = new int[sum_boolCh];
+        	for(int i = 0, n = 0; i<numCh; i++) {
+        		if(boolCh[i])
+        			proxyChannels[n++] = i+1;
+        	}
+        }
+        if(boolLog) {
+        	String cString = "";
+        	for(int i = 0; i<proxyChannels.length; i++)
+        		cString = cString+","+proxyChannels[i];
+        	IJ.log("Reading channel(s): "+cString.substring(1)+" for transformation matrix computation..."); 
+        	if(proxyChannels.length > 1)
+        		IJ.log("Channels are merged "+((channelMerge == 0) ? "to RGB" : "to a 32-bit weighted sum")+" frame by frame...");
         }
-        impRGB.setTitle(WindowManager.getUniqueName(imp.getTitle()));
-//    	if(sum_boolCh  != 1) {
-    	if(sum_boolCh  > 1 || (sum_boolCh ==0 && numCh >1)) {
-    		IJ.log("Converting duplicated Hyperstack to RGB...");
-			impRGB.flattenStack();
-		}
-		impRGB.show(); // Note: impRGB is not of RGB type if only 1 channel is being used for transformation matrix computation
 		
-// Set up path for the transformation matrix text file
-		saveTransform = true;
+// Set up path for the transformation matrix file; the text file is exported from it once all matrices are known
 		savePath=IJ.getDirectory("temp");
-		saveFile= "TransformationMatrices.txt";
+		saveFile= "TransformationMatrices.bin";
 		String path=savePath+saveFile;;
 		try{
-			FileWriter fw= new FileWriter(path);
-			fw.write("HyperStackReg_v"+version+" Transformation File\n");
-			fw.write("Author: Ved P Sharma\n");
-			fw.write("vedsharma_at_gmail_dot_com\n");
-			fw.close();
-		}catch(IOException e){}
+			transformStore = new TransformStore(path, numZChains, numFr, transformation);
+		}catch(IOException e){
+			IJ.error("Error writing to file.");
+			return;
+		}
 		if(boolLog)
 			IJ.log("An empty Transformation matrix file created at:\n  "+path);
 
 //Start registering RGB slices and write transformation in the text file
-		final int width = impRGB.getWidth();
-		final int height = impRGB.getHeight();
-		final int targetSlice = impRGB.getT();
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int targetSlice = imp.getT();
 		tSlice=targetSlice;
+// Only the bounding rectangle of an area ROI is registered, at the estimation scale; the landmarks are mapped
+// back to full-frame, full-resolution coordinates before they are stored
+		final Roi roi = imp.getRoi();
+		estimationRect = new Rectangle(0, 0, width, height);
+		if(roi != null && roi.isArea())
+			estimationRect = estimationRect.intersection(roi.getBounds());
+		final int proxyWidth = estimationRect.width / binning;
+		final int proxyHeight = estimationRect.height / binning;
+		if(proxyWidth < 1 || proxyHeight < 1) {
+			IJ.error("HyperStackReg", "The "+((roi != null && roi.isArea()) ? "ROI" : "image")+" is too small for the estimation scale 1/"+binning+".");
+			transformStore.close();
+			return;
+		}
+		if(boolLog && roi != null && roi.isArea())
+			IJ.log("Estimation restricted to the ROI bounds: x="+estimationRect.x+", y="+estimationRect.y+", "+estimationRect.width+" x "+estimationRect.height+" pixels");
+		if(boolLog && binning > 1)
+			IJ.log("Estimation scale: 1/"+binning+" ("+proxyWidth+" x "+proxyHeight+" pixels)");
+// The chains of frames before and after the target frame only share the target frame and the color weights
+// of their Z-slice; the weights are computed first, then every chain is an independent task, and each thread
+// takes the next one that nobody has started yet and writes its records to their own place in the transformation file
+		final int numThreads = Math.max(1, Math.min(threads, 2*numZChains));
 		if(boolLog)
-				IJ.log("Started computation of transformation matrices by registering duplicated or extracted HyperStack...");
-		for(int k =1; k<=numSl; k++) {
-			if(boolLog)
-				IJ.log("  Processing slice: Z = "+k);
-			impCurr = new Duplicator().run(impRGB, 1,1,k,k,1,numFr);
-			impCurr.show();
-//*******************
-		double[][] globalTransform = { {1.0, 0.0, 0.0}, {0.0, 1.0, 0.0},	{0.0, 0.0, 1.0}	};
-		double[][] anchorPoints = null;
-		switch (transformation) {
-			case 0: { // Translation
-				anchorPoints = new double[1][3];
-				anchorPoints[0][0] = (double)(width / 2);
-				anchorPoints[0][1] = (double)(height / 2);
-				anchorPoints[0][2] = 1.0;
-				break;
-			}
-			case 1: { // Rigid Body
-				anchorPoints = new double[3][3];
-				anchorPoints[0][0] = (double)(width / 2);
-				anchorPoints[0][1] = (double)(height / 2);
-				anchorPoints[0][2] = 1.0;
-				anchorPoints[1][0] = (double)(width / 2);
-				anchorPoints[1][1] = (double)(height / 4);
-				anchorPoints[1][2] = 1.0;
-				anchorPoints[2][0] = (double)(width / 2);
-				anchorPoints[2][1] = (double)((3 * height) / 4);
-				anchorPoints[2][2] = 1.0;
-				break;
-			}
-			case 2: { // Scaled Rotation
-				anchorPoints = new double[2][3];
-				anchorPoints[0][0] = (double)(width / 4);
-				anchorPoints[0][1] = (double)(height / 2);
-				anchorPoints[0][2] = 1.0;
-				anchorPoints[1][0] = (double)((3 * width) / 4);
-				anchorPoints[1][1] = (double)(height / 2);
-				anchorPoints[1][2] = 1.0;
-				break;
-			}
-			case 3: { // Affine
-				anchorPoints = new double[3][3];
-				anchorPoints[0][0] = (double)(width / 2);
-				anchorPoints[0][1] = (double)(height / 4);
-				anchorPoints[0][2] = 1.0;
-				anchorPoints[1][0] = (double)(width / 4);
-				anchorPoints[1][1] = (double)((3 * height) / 4);
-				anchorPoints[1][2] = 1.0;
-				anchorPoints[2][0] = (double)((3 * width) / 4);
-				anchorPoints[2][1] = (double)((3 * height) / 4);
-				anchorPoints[2][2] = 1.0;
-				break;
+				IJ.log("Started computation of transformation matrices by registering the selected channel(s) of the HyperStack ("+numThreads+" thread(s))...");
+		if(boolLog && zMode > 0)
+			IJ.log("One transformation per frame, estimated from "+((zMode == 3) ? "Z = "+zEstimation : zItem[zMode].toLowerCase())+" and applied to all Z-slices");
+// the Z-slices share the threads; what is left over goes to the color statistics of each slice
+		statisticsThreads = Math.max(1, numThreads / numZChains);
+		final double[][] colorWeights = new double[numZChains][];
+		boolean done = forEachIndex(numZChains, numThreads, new IndexedTask() {
+			public boolean run(final int n) {
+				colorWeights[n] = getSliceColorWeights(imp, proxyChannels, n+1);
+				return(true);
 			}
-			default: {
-				IJ.error("Unexpected transformation");
+		});
+
+		String registeredTitle;
+		int index = imageTitle.lastIndexOf("."); 
+		int finalIndex = imageTitle.length();
+		if(index != -1)
+			registeredTitle = imageTitle.substring(0, index)+"-registered"+imageTitle.substring(index, finalIndex);
+		else
+			registeredTitle = imageTitle+"-registered";
+
+// duplicate channels; read transformations and apply them to each channel
+// the registered hyperstack is allocated once, in its final C, Z, T order; each warped series is put straight into its slots,
+// or, for a TIFF output, streamed to its place in the file and dropped
+		ImageStack registered = null;
+		TiffStackWriter writer = null;
+		String outputPath = null;
+		if(toDisk) {
+			if(!outputFolder.endsWith(File.separator))
+				outputFolder = outputFolder+File.separator;
+			outputPath = outputFolder+(registeredTitle.toLowerCase().endsWith(".tif") ? registeredTitle : registeredTitle+".tif");
+			try{
+				writer = new TiffStackWriter(outputPath, width, height, imp.getBitDepth(), numCh, numSl, numFr);
+			}catch(IOException e){
+				IJ.error("HyperStackReg", "Could not create "+outputPath+"\n"+e.getMessage());
+				transformStore.close();
 				return;
 			}
+			if(boolLog)
+				IJ.log("Writing registered Hyperstack to:\n  "+outputPath);
 		}
-	
-		ImagePlus source = null;
-		ImagePlus target = null;
-		double[] colorWeights = null;
-		switch (impCurr.getType()) {
-			case ImagePlus.COLOR_256:
-			case ImagePlus.COLOR_RGB: {
-				colorWeights = getColorWeightsFromPrincipalComponents(impCurr);
-				impCurr.setSlice(targetSlice);
-				target = getGray32("StackRegTarget", impCurr, colorWeights);
-				break;
+		else
+			registered = new ImageStack(width, height, numCh*numSl*numFr);
+		final ImageStack stack = imp.getStack();
+		final int type = imp.getType();
+		if(type == ImagePlus.COLOR_256)
+			inverseLut = new InverseLut((IndexColorModel)stack.getProcessor(1).getColorModel());
+		final double[][] anchorPoints = getAnchorPoints(transformation, width, height);
+		final int numPlanes = numCh*numSl*numFr;
+		final AtomicInteger planesDone = new AtomicInteger(0);
+		final ImageStack registeredStack = registered;
+		final TiffStackWriter planeWriter = writer;
+// every plane reads its own transform from the transformation file, so it is an independent task
+// the registered hyperstack has the C, Z, T order of the original one, so a plane keeps its stack index
+		final IndexedTask warpPlane = new IndexedTask() {
+			public boolean run(final int n) {
+				final int plane = n+1;
+				final int[] position = imp.convertIndexToPosition(plane);
+				final ImageProcessor original = takePlane(stack, plane);
+				final ImageProcessor ip;
+				if(position[2] == targetSlice)
+					ip = original.duplicate();
+				else {
+					final double[][] globalTransform = new double[3][3];
+					if(!loadTransform((zMode == 0) ? position[1] : 1, position[2], globalTransform))
+						return(false);
+					if(isIdentity(globalTransform))
+						ip = original.duplicate();
+					else
+						ip = warpSlice(original, type, width, height,
+								transformation, globalTransform, anchorPoints);
+				}
+				if(ip == null || !putRegisteredPlane(registeredStack, planeWriter, plane, ip))
+					return(false);
+				IJ.showProgress(planesDone.incrementAndGet(), numPlanes);
+				return(true);
 			}
-			case ImagePlus.GRAY8: {
-				target = new ImagePlus("StackRegTarget", new ByteProcessor(width, height, new byte[width * height], impCurr.getProcessor().getColorModel()));
-				target.getProcessor().copyBits(impCurr.getProcessor(), 0, 0, Blitter.COPY);
-				break;
+		};
+		final IndexedTask chainTask = new IndexedTask() {
+			public boolean run(final int n) {
+				final int k = n/2 + 1;
+				final boolean backward = (n % 2) == 0;
+				if(backward ? (targetSlice == 1) : (targetSlice == numFr))
+					return(true);
+				if(boolLog)
+					IJ.log("  Processing slice: Z = "+k+(backward ? ", frames before " : ", frames after ")+"T = "+targetSlice);
+				return(estimateChain(imp, proxyChannels, k, backward ? -1 : 1, proxyWidth, proxyHeight, transformation, targetSlice, colorWeights[k-1]));
 			}
-			case ImagePlus.GRAY16: {
-				target = new ImagePlus("StackRegTarget",	new ShortProcessor(width, height, new short[width * height], impCurr.getProcessor().getColorModel()));
-				target.getProcessor().copyBits(impCurr.getProcessor(), 0, 0, Blitter.COPY);
-				break;
+		};
+		if(pipelined) {
+// the chains hand over each frame as soon as its transformation is written; the warp threads take the frames
+// from the queue and warp all their planes while the next frames are being registered; the planes of a
+// virtual input that a chain has read are kept for the warp threads, so that they are read from disk only once
+			final int warpThreads = Math.max(1, threads - numThreads);
+			readyFrames = new ArrayBlockingQueue<int[]>(numZChains + 2*warpThreads);
+			if(stack.isVirtual())
+				readPlanes = new ConcurrentHashMap<Integer, ImageProcessor>();
+			warpFailed.set(false);
+			if(boolLog)
+				IJ.log("  Warping "+numPlanes+" planes while registering ("+warpThreads+" thread(s))...");
+			final AtomicReference<Throwable> warpError = new AtomicReference<Throwable>();
+			final Callable<?>[] warpers = new Callable<?>[warpThreads];
+			for(int i = 0; i<warpThreads; i++) {
+				warpers[i] = new Callable<Void>() {
+					public Void call() {
+						// after a failure the queue is still drained up to the end marker, so that no chain waits forever
+						while(true) {
+							final int[] frame;
+							try{
+								frame = readyFrames.take();
+							}catch(InterruptedException e){
+								warpFailed.set(true);
+								continue;
+							}
+							if(frame[0] == 0)
+								return(null); // no more frames
+							try{
+								for(int z = (zMode == 0) ? frame[0] : 1; (z <= ((zMode == 0) ? frame[0] : numSl)) && !warpFailed.get(); z++)
+									for(int c = 1; (c <= numCh) && !warpFailed.get(); c++)
+										if(!warpPlane.run(imp.getStackIndex(c, z, frame[1])-1))
+											warpFailed.set(true);
+							}catch(Throwable e){
+								warpError.compareAndSet(null, e);
+								warpFailed.set(true);
+							}
+						}
+					}
+				};
 			}
-			case ImagePlus.GRAY32: {
-				target = new ImagePlus("StackRegTarget",	new FloatProcessor(width, height, new float[width * height],	impCurr.getProcessor().getColorModel()));
-				target.getProcessor().copyBits(impCurr.getProcessor(), 0, 0, Blitter.COPY);
-				break;
+			final Future<?>[] futures = ThreadUtil.start(warpers);
+			try{
+				for(int k = 1; k<=numZChains; k++)
+					done = done && postFrames(k, targetSlice, targetSlice, 1);
+				done = done && forEachIndex(2*numZChains, numThreads, chainTask);
+			}finally{
+				for(int i = 0; i<warpThreads; i++) {
+					try{
+						readyFrames.put(new int[] {0, 0});
+					}catch(InterruptedException e){
+						warpFailed.set(true);
+					}
+				}
+				ThreadUtil.joinAll(futures);
+				readyFrames = null;
+				readPlanes = null;
 			}
-			default: {
-				IJ.error("Unexpected image type");
-				return;
+			if(warpError.get() != null)
+				IJ.error("HyperStackReg", "Warping failed:\n"+warpError.get());
+			done = done && !warpFailed.get();
+		}
+		else
+			done = done && forEachIndex(2*numZChains, numThreads, chainTask);
+		if(!done) {
+			transformStore.close();
+			if(writer != null) {
+				try{
+					writer.close();
+				}catch(IOException e){
+				}
 			}
+			return;
+		}
+		if(boolLog && (keyframeInterval > 1 || keyframeThreshold > 0.0))
+			IJ.log("Registered "+keyframes.get()+" keyframe(s) of "+(numZChains*(numFr-1))+" frame(s); the other transformations were interpolated"+((motionTolerance > 0.0) ? " or skipped" : ""));
+		if(boolLog && motionTolerance > 0.0)
+			IJ.log("Skipped "+skippedFrames.get()+" frame(s) within the motion tolerance of the last registered frame; they keep its transformation");
+		if(boolLog && registration == 0)
+			IJ.log("Built-in aligner: "+alignerIterations.get()+" Gauss-Newton iteration(s) over all pyramid levels"+(warmStart ? ", starting from the motion of the previous frames" : ""));
+		final String textPath = savePath+"TransformationMatrices.txt";
+		try{
+			final String[] header = {"HyperStackReg_v"+version+" Transformation File", "Author: Ved P Sharma", "vedsharma_at_gmail_dot_com"};
+			transformStore.exportText(textPath, header, targetSlice);
+		}catch(IOException e){
+			IJ.error("Error writing to file.");
 		}
+		if(boolLog)
+			IJ.log("Finished writing all the transformation matrices (text copy:\n  "+textPath+")"+(pipelined ? "" : "\nApplying transformation matrices to the original Hyperstack..."));
 
-//		Processing slices backward
-		for (int s = targetSlice - 1; s > 0; s--) {
-			source = registerSlice(source, target, impCurr, width, height,	transformation, globalTransform, anchorPoints, colorWeights, s);
-			if (source == null) {
-				impCurr.setSlice(targetSlice);
+		if(!pipelined) {
+			if(boolLog)
+				IJ.log("  Warping "+numPlanes+" planes ("+Math.max(1, Math.min(threads, numPlanes))+" thread(s))...");
+			if(!forEachIndex(numPlanes, threads, warpPlane)) {
+				transformStore.close();
+				if(writer != null) {
+					try{
+						writer.close();
+					}catch(IOException e){
+					}
+				}
 				return;
 			}
 		}
-		if ((1 < targetSlice) && (targetSlice < impCurr.getStackSize())) {
-			globalTransform[0][0] = 1.0;
-			globalTransform[0][1] = 0.0;
-			globalTransform[0][2] = 0.0;
-			globalTransform[1][0] = 0.0;
-			globalTransform[1][1] = 1.0;
-			globalTransform[1][2] = 0.0;
-			globalTransform[2][0] = 0.0;
-			globalTransform[2][1] = 0.0;
-			globalTransform[2][2] = 1.0;
-			impCurr.setSlice(targetSlice);
-			switch (impCurr.getType()) {
-				case ImagePlus.COLOR_256:
-				case ImagePlus.COLOR_RGB: {
-					target = getGray32("StackRegTarget", impCurr, colorWeights);
-					break;
-				}
-				case ImagePlus.GRAY8:
-				case ImagePlus.GRAY16:
-				case ImagePlus.GRAY32: {
-					target.getProcessor().copyBits(impCurr.getProcessor(), 0, 0, Blitter.COPY);
-					break;
-				}
-				default: {
-					IJ.error("Unexpected image type");
-					return;
-				}
+		transformStore.close();
+//Make the registered stack a hyperstack, change name, set original colors and show in a stackwindow 
+		if(writer != null) {
+			try{
+				writer.close();
+			}catch(IOException e){
+				IJ.error("HyperStackReg", "Error writing to "+outputPath+"\n"+e.getMessage());
+				return;
 			}
-		}
-//		Processing slices forward
-		for (int s = targetSlice + 1; (s <= impCurr.getStackSize()); s++) {
-			source = registerSlice(source, target, impCurr, width, height,	transformation, globalTransform, anchorPoints, colorWeights, s);
-			if (source == null) {
-				impCurr.setSlice(targetSlice);
+			HS = IJ.openVirtual(outputPath); // reopened from disk, plane by plane
+			if(HS == null) {
+				IJ.error("HyperStackReg", "Could not reopen "+outputPath);
 				return;
 			}
+			HS.setDimensions(numCh, numSl, numFr); // the file has no channels of RGB planes
 		}
-		impCurr.close();
-	}
-		impRGB.close();
+		else {
+			HS = new ImagePlus(imageTitle, registered);
+			HS.setDimensions(numCh, numSl, numFr);
+			if(numCh >1 && HS.getBitDepth() != 24) // RGB planes keep their own colors
+				HS = new CompositeImage(HS, IJ.COMPOSITE);
+		}
+		HS.setCalibration(imp.getCalibration());
+		HS.setOpenAsHyperStack(true);
+		HS.setTitle(registeredTitle);
+		if(HS.isComposite())
+			((CompositeImage)HS).setLuts(luts);
+		else if(HS.getBitDepth() != 24)
+			HS.setLut(luts[0]);
+		new StackWindow(HS);
 		if(boolLog)
-			IJ.log("Finished writing all the transformation matrices.\nApplying transformation matrices to the original Hyperstack...");
-
-// duplicate channels; read transformations and apply them to each channel
-			impAllSlices=null;
-			for(int j =1; j<=numCh; j++) {
-				for(int k =1; k<=numSl; k++) {	
-					if(boolLog)
-						IJ.log("  Processing channel: C = "+j+", slice: Z = "+k);
-					impCurr = new Duplicator().run(imp, j,j,k,k,1,numFr);
-					impCurr.show();
-		            loadPathAndFilename = savePath+saveFile;
-					int tgt = targetSlice;
-					impCurr.setSlice(tgt);
-	
-					double[][] globalTransform = {
-						{1.0, 0.0, 0.0},
-						{0.0, 1.0, 0.0},
-						{0.0, 0.0, 1.0}
-					};
-					double[][] anchorPoints = null;
-					switch (transformation) {
-						case 0: {
-							anchorPoints = new double[1][3];
-							anchorPoints[0][0] = (double)(width / 2);
-							anchorPoints[0][1] = (double)(height / 2);
-							anchorPoints[0][2] = 1.0;
-							break;
-						}
-						case 1: {
-							anchorPoints = new double[3][3];
-							anchorPoints[0][0] = (double)(width / 2);
-							anchorPoints[0][1] = (double)(height / 2);
-							anchorPoints[0][2] = 1.0;
-							anchorPoints[1][0] = (double)(width / 2);
-							anchorPoints[1][1] = (double)(height / 4);
-							anchorPoints[1][2] = 1.0;
-							anchorPoints[2][0] = (double)(width / 2);
-							anchorPoints[2][1] = (double)((3 * height) / 4);
-							anchorPoints[2][2] = 1.0;
-							break;
-						}
-						case 2: {
-							anchorPoints = new double[2][3];
-							anchorPoints[0][0] = (double)(width / 4);
-							anchorPoints[0][1] = (double)(height / 2);
-							anchorPoints[0][2] = 1.0;
-							anchorPoints[1][0] = (double)((3 * width) / 4);
-							anchorPoints[1][1] = (double)(height / 2);
-							anchorPoints[1][2] = 1.0;
-							break;
-						}
-						case 3: {
-							anchorPoints = new double[3][3];
-							anchorPoints[0][0] = (double)(width / 2);
-							anchorPoints[0][1] = (double)(height / 4);
-							anchorPoints[0][2] = 1.0;
-							anchorPoints[1][0] = (double)(width / 4);
-							anchorPoints[1][1] = (double)((3 * height) / 4);
-							anchorPoints[1][2] = 1.0;
-							anchorPoints[2][0] = (double)((3 * width) / 4);
-							anchorPoints[2][1] = (double)((3 * height) / 4);
-							anchorPoints[2][2] = 1.0;
-							break;
-						}
-						default: {
-							IJ.error("Unexpected transformation");
-						}
-					}
-					ImagePlus source = null;
-					ImagePlus target = null;
-					double[] colorWeights = null;
-					switch (impCurr.getType()) {
-						case ImagePlus.COLOR_256:
-						case ImagePlus.COLOR_RGB: {
-							colorWeights = getColorWeightsFromPrincipalComponents(impCurr);
-							impCurr.setSlice(targetSlice);
-							target = getGray32("StackRegTarget", impCurr, colorWeights);
-							break;
-						}
-						case ImagePlus.GRAY8: {
-							target = new ImagePlus("StackRegTarget",
-								new ByteProcessor(width, height, new byte[width * height],
-								impCurr.getProcessor().getColorModel()));
-							target.getProcessor().copyBits(impCurr.getProcessor(), 0, 0, Blitter.COPY);
-							break;
-						}
-						case ImagePlus.GRAY16: {
-							target = new ImagePlus("StackRegTarget",
-								new ShortProcessor(width, height, new short[width * height],
-								impCurr.getProcessor().getColorModel()));
-							target.getProcessor().copyBits(impCurr.getProcessor(), 0, 0, Blitter.COPY);
-							break;
-						}
-						case ImagePlus.GRAY32: {
-							target = new ImagePlus("StackRegTarget",
-								new FloatProcessor(width, height, new float[width * height],
-								impCurr.getProcessor().getColorModel()));
-							target.getProcessor().copyBits(impCurr.getProcessor(), 0, 0, Blitter.COPY);
-							break;
-						}
-						default: {
-							IJ.error("Unexpected image type");
-						}
-					}
-//				Processing slices backward
-					for (int s = targetSlice - 1; s > 0; s--) {
-						source = registerSlice(source, target, impCurr, width, height,
-								transformation, globalTransform, anchorPoints, colorWeights, s);
-						if (source == null) {
-							impCurr.setSlice(targetSlice);
-							return;
-						}
-					}
-					if ((1 < targetSlice) && (targetSlice < impCurr.getStackSize())) {
-						globalTransform[0][0] = 1.0;
-						globalTransform[0][1] = 0.0;
-						globalTransform[0][2] = 0.0;
-						globalTransform[1][0] = 0.0;
-						globalTransform[1][1] = 1.0;
-						globalTransform[1][2] = 0.0;
-						globalTransform[2][0] = 0.0;
-						globalTransform[2][1] = 0.0;
-						globalTransform[2][2] = 1.0;
-						impCurr.setSlice(targetSlice);
-						switch (impCurr.getType()) {
-							case ImagePlus.COLOR_256:
-							case ImagePlus.COLOR_RGB: {
-								target = getGray32("StackRegTarget", impCurr, colorWeights);
-								break;
-							}
-							case ImagePlus.GRAY8:
-							case ImagePlus.GRAY16:
-							case ImagePlus.GRAY32: {
-								target.getProcessor().copyBits(impCurr.getProcessor(), 0, 0, Blitter.COPY);
-								break;
-							}
-							default: {
-								IJ.error("Unexpected image type");
-								return;
-							}
-						}
-					}
-//				Processing slices forward
-					for (int s = targetSlice + 1; (s <= impCurr.getStackSize()); s++) {
-						source = registerSlice(source, target, impCurr, width, height,
-								transformation, globalTransform, anchorPoints, colorWeights, s);
-						if (source == null) {
-							impCurr.setSlice(targetSlice);
-							return;
-						}
-					}
-					
-			impCurr.setSlice(targetSlice);
-			impCurr.updateAndDraw();
-			if(j==1 && k==1)
-				impAllSlices = impCurr.duplicate();
-			else
-				impAllSlices = new Concatenator().concatenate(impAllSlices, impCurr, false);
-			impCurr.close();
-			}
-			// reset transformNumber=0 to start reading the transformation file from the beginning for the next channel
-			transformNumber=0; 
-		}
-//Covert the concatenated stack to hyperstack, change name, set original colors and show in a stackwindow 
-			HS = new HyperStackConverter().toHyperStack(impAllSlices, numCh, numSl, numFr, "xytzc", "Composite");
-			impAllSlices.close();
-			int index = imageTitle.lastIndexOf("."); 
-			int finalIndex = imageTitle.length();
-			if(index != -1)
-				HS.setTitle(imageTitle.substring(0, index)+"-registered"+imageTitle.substring(index, finalIndex));
-			else
-				HS.setTitle(imageTitle+"-registered");
-			if(numCh >1)
-				((CompositeImage)HS).setLuts(luts);
-			else
-				HS.setLut(luts[0]);
-			new StackWindow(HS);
-			if(boolLog)
-				IJ.log("Done!\n"+" ");
-			IJ.showStatus("Finished running HyperStackReg");
-			IJ.showProgress(1.0); //to erase progress bar
+			IJ.log("Done!\n"+" ");
+		IJ.showStatus("Finished running HyperStackReg");
+		IJ.showProgress(1.0); //to erase progress bar
 	} /* end run */
 			
 /* ********************   private methods *********************/
 	/*------------------------------------------------------------------*/
-			private void loadTransform(double[][] src, double[][] tgt){
+	private boolean loadTransform(int z, int s, double[][] globalTransform){
 		try{
-				final FileReader fr=new FileReader(loadPathAndFilename);
-				BufferedReader br = new BufferedReader(fr);
-				String record;
-				int separatorIndex;
-				String[] fields=new String[3];
-				record = br.readLine();	
-				record = br.readLine();	
-				record = br.readLine();	
-				for (int i=0;i<transformNumber;i++)
-					for (int j=0;j<10;j++)
-						record = br.readLine();	
-				//read the target and source index
-				record = br.readLine();		
-				record = br.readLine();		
-				for (int i=0;i<3;i++){
-					record = br.readLine();		
-					record = record.trim();
-					separatorIndex = record.indexOf('\t');			
-					fields[0] = record.substring(0, separatorIndex);
-					fields[1] = record.substring(separatorIndex);
-					fields[0] = fields[0].trim();
-					fields[1] = fields[1].trim();
-					src[i][0]=(new Double(fields[0])).doubleValue();
-					src[i][1]=(new Double(fields[1])).doubleValue();
-				}
-				record = br.readLine();	
-				for (int i=0;i<3;i++){
-					record = br.readLine();		
-					record = record.trim();
-					separatorIndex = record.indexOf('\t');
-					
-					fields[0] = record.substring(0, separatorIndex);
-					fields[1] = record.substring(separatorIndex);
-					fields[0] = fields[0].trim();
-					fields[1] = fields[1].trim();
-					tgt[i][0]=(new Double(fields[0])).doubleValue();
-					tgt[i][1]=(new Double(fields[1])).doubleValue();
-				}
-				fr.close();
-				return;
-		}catch(FileNotFoundException e){
+			if (transformStore.readGlobal(z, s, globalTransform))
+				return true;
 			IJ.error("Could not find proper transformation matrix.");
 		}catch (IOException e) {
 			IJ.error("Error reading from file.");
 		}
-		return;
+		return false;
 	}
 	/*------------------------------------------------------------------*/
-	private void appendTransform(String path, int sourceID, int targetID,double[][] src,double[][] tgt,int transform){
+	private static boolean isIdentity(final double[][] matrix){
+		for(int i=0; i<3; i++)
+			for(int j=0; j<3; j++)
+				if(Math.abs(matrix[i][j] - ((i == j) ? 1.0 : 0.0)) > 1e-9)
+					return(false);
+		return(true);
+	}
+	
+	private boolean putRegisteredPlane(final ImageStack registered, final TiffStackWriter writer, final int index, final ImageProcessor ip){
+		if (writer == null) {
+			registered.setPixels(ip.getPixels(), index);
+			return true;
+		}
+		try{
+			writer.writePlane(index, ip.getPixels());
+			return true;
+		}catch (IOException e) {
+			IJ.error("HyperStackReg", "Error writing registered Hyperstack.\n"+e.getMessage());
+		}
+		return false;
+	}
+	/*------------------------------------------------------------------*/
+	private static void appendTransform(Writer fw, int sourceID, int targetID,double[][] src,double[][] tgt,int transform) throws IOException {
 		String Transform="RIGID_BODY";
 		switch(transform){
 			case 0:{	Transform="TRANSLATION"; break;	}
@@ -584,107 +639,130 @@ public class HyperStackReg_	implements PlugIn {
 			case 2:{	Transform="SCALED_ROTATION";	break; }
 			case 3:{	Transform="AFFINE";	break;}
 		}
-		try {
-			final FileWriter fw = new FileWriter(path,true);
-			fw.append(Transform+"\n");
-			fw.append("Source img: "+sourceID+" Target img: "+targetID+"\n"); 
-			fw.append(src[0][0] +"\t"+src[0][1]+"\n");
-			fw.append(src[1][0] +"\t"+src[1][1]+"\n");
-			fw.append(src[2][0] +"\t"+src[2][1]+"\n");
-			fw.append("\n");
-			fw.append(tgt[0][0] +"\t"+tgt[0][1]+"\n");
-			fw.append(tgt[1][0] +"\t"+tgt[1][1]+"\n");
-			fw.append(tgt[2][0] +"\t"+tgt[2][1]+"\n");
-			fw.append("\n");
-			fw.close();
-		}catch (IOException e) {
-			IJ.error("Error writing to file.");
-		}
+		fw.append(Transform+"\n");
+		fw.append("Source img: "+sourceID+" Target img: "+targetID+"\n"); 
+		fw.append(src[0][0] +"\t"+src[0][1]+"\n");
+		fw.append(src[1][0] +"\t"+src[1][1]+"\n");
+		fw.append(src[2][0] +"\t"+src[2][1]+"\n");
+		fw.append("\n");
+		fw.append(tgt[0][0] +"\t"+tgt[0][1]+"\n");
+		fw.append(tgt[1][0] +"\t"+tgt[1][1]+"\n");
+		fw.append(tgt[2][0] +"\t"+tgt[2][1]+"\n");
+		fw.append("\n");
 	}/*appendTransform*/
+
+	/*------------------------------------------------------------------*/
+	/* Means and covariance of the RGB components of the frames. Every
+		stride-th pixel of the frames laid end to end is sampled, so that
+		about statisticsBudget pixels spread over all frames are left (all of
+		them if 0). The frames are split into blocks of pixels, read
+		concurrently on statisticsThreads threads; a frame is split only when
+		there are fewer frames than threads. */
 	private void computeStatistics (
 		final ImagePlus imp,
 		final double[] average,
 		final double[][] scatterMatrix
 	) {
-		int length = imp.getWidth() * imp.getHeight();
-		double r;
-		double g;
-		double b;
-		if (imp.getProcessor().getPixels() instanceof byte[]) {
-			final IndexColorModel icm =
-				(IndexColorModel)imp.getProcessor().getColorModel();
-			final int mapSize = icm.getMapSize();
+		final ImageStack stack = imp.getStack();
+		final int length = imp.getWidth() * imp.getHeight();
+		final int numFrames = imp.getStackSize();
+		final long total = (long)length * numFrames;
+		final long stride = (statisticsBudget > 0L) ? Math.max(1L, total / statisticsBudget) : 1L;
+		final int blocks = Math.max(1, (statisticsThreads + numFrames - 1) / numFrames);
+		final int blockLength = (length + blocks - 1) / blocks;
+		final boolean indexed = imp.getProcessor().getPixels() instanceof byte[];
+		if (!indexed && !(imp.getProcessor().getPixels() instanceof int[])) {
+			IJ.error("Internal type mismatch");
+			return;
+		}
+		final IndexColorModel icm = (indexed) ? (IndexColorModel)imp.getProcessor().getColorModel() : null;
+		final int mapSize = (indexed) ? icm.getMapSize() : 0;
+		final double[] histogram = new double[mapSize];
+		final double[] sums = new double[10]; // r, g, b, rr, rg, rb, gg, gb, bb, count
+		forEachIndex(numFrames * blocks, statisticsThreads, new IndexedTask() {
+			public boolean run(final int n) {
+				final int frame = n / blocks;
+				final int start = (n % blocks) * blockLength;
+				final int end = Math.min(length, start + blockLength);
+				// first sampled pixel of the block, counting the pixels of the frames before it
+				final long offset = (long)frame * length + start;
+				final long first = start + (stride - offset % stride) % stride;
+				if (end <= first)
+					return(true);
+				final Object pixels = stack.getProcessor(frame + 1).getPixels();
+				if (indexed) {
+					final byte[] bytes = (byte[])pixels;
+					final double[] partial = new double[mapSize];
+					for (long k = first; (k < end); k += stride) {
+						partial[bytes[(int)k] & 0xFF]++;
+					}
+					synchronized (histogram) {
+						for (int k = 0; (k < mapSize); k++) {
+							histogram[k] += partial[k];
+						}
+					}
+				}
+				else {
+					final int[] colors = (int[])pixels;
+					final double[] partial = new double[sums.length];
+					for (long k = first; (k < end); k += stride) {
+						final int color = colors[(int)k];
+						final double r = (double)((color & 0x00FF0000) >>> 16);
+						final double g = (double)((color & 0x0000FF00) >>> 8);
+						final double b = (double)(color & 0x000000FF);
+						partial[0] += r;
+						partial[1] += g;
+						partial[2] += b;
+						partial[3] += r * r;
+						partial[4] += r * g;
+						partial[5] += r * b;
+						partial[6] += g * g;
+						partial[7] += g * b;
+						partial[8] += b * b;
+						partial[9]++;
+					}
+					synchronized (sums) {
+						for (int k = 0; (k < sums.length); k++) {
+							sums[k] += partial[k];
+						}
+					}
+				}
+				return(true);
+			}
+		});
+		if (indexed) {
 			final byte[] reds = new byte[mapSize];
 			final byte[] greens = new byte[mapSize];
-			final byte[] blues = new byte[mapSize];	
-			icm.getReds(reds); 
-			icm.getGreens(greens); 
+			final byte[] blues = new byte[mapSize];
+			icm.getReds(reds);
+			icm.getGreens(greens);
 			icm.getBlues(blues);
-			final double[] histogram = new double[mapSize];
-			for (int k = 0; (k < mapSize); k++) {
-				histogram[k] = 0.0;
-			}
-			for (int s = 1; (s <= imp.getStackSize()); s++) {
-				imp.setSlice(s);
-				final byte[] pixels = (byte[])imp.getProcessor().getPixels();
-				for (int k = 0; (k < length); k++) {
-					histogram[pixels[k] & 0xFF]++;
-				}
-			}
 			for (int k = 0; (k < mapSize); k++) {
-				r = (double)(reds[k] & 0xFF);
-				g = (double)(greens[k] & 0xFF);
-				b = (double)(blues[k] & 0xFF);
-				average[0] += histogram[k] * r;
-				average[1] += histogram[k] * g;
-				average[2] += histogram[k] * b;
-				scatterMatrix[0][0] += histogram[k] * r * r;
-				scatterMatrix[0][1] += histogram[k] * r * g;
-				scatterMatrix[0][2] += histogram[k] * r * b;
-				scatterMatrix[1][1] += histogram[k] * g * g;
-				scatterMatrix[1][2] += histogram[k] * g * b;
-				scatterMatrix[2][2] += histogram[k] * b * b;
-			}
-		}
-		else if (imp.getProcessor().getPixels() instanceof int[]) {
-			for (int s = 1; (s <= imp.getStackSize()); s++) {
-				imp.setSlice(s);
-				final int[] pixels = (int[])imp.getProcessor().getPixels();
-				for (int k = 0; (k < length); k++) {
-					r = (double)((pixels[k] & 0x00FF0000) >>> 16);
-					g = (double)((pixels[k] & 0x0000FF00) >>> 8);
-					b = (double)(pixels[k] & 0x000000FF);
-					average[0] += r;
-					average[1] += g;
-					average[2] += b;
-					scatterMatrix[0][0] += r * r;
-					scatterMatrix[0][1] += r * g;
-					scatterMatrix[0][2] += r * b;
-					scatterMatrix[1][1] += g * g;
-					scatterMatrix[1][2] += g * b;
-					scatterMatrix[2][2] += b * b;
-				}
+				final double r = (double)(reds[k] & 0xFF);
+				final double g = (double)(greens[k] & 0xFF);
+				final double b = (double)(blues[k] & 0xFF);
+				sums[0] += histogram[k] * r;
+				sums[1] += histogram[k] * g;
+				sums[2] += histogram[k] * b;
+				sums[3] += histogram[k] * r * r;
+				sums[4] += histogram[k] * r * g;
+				sums[5] += histogram[k] * r * b;
+				sums[6] += histogram[k] * g * g;
+				sums[7] += histogram[k] * g * b;
+				sums[8] += histogram[k] * b * b;
+				sums[9] += histogram[k];
 			}
 		}
-		else {
-			IJ.error("Internal type mismatch");
-		}
-		length *= imp.getStackSize();
-		average[0] /= (double)length;
-		average[1] /= (double)length;
-		average[2] /= (double)length;
-		scatterMatrix[0][0] /= (double)length;
-		scatterMatrix[0][1] /= (double)length;
-		scatterMatrix[0][2] /= (double)length;
-		scatterMatrix[1][1] /= (double)length;
-		scatterMatrix[1][2] /= (double)length;
-		scatterMatrix[2][2] /= (double)length;
-		scatterMatrix[0][0] -= average[0] * average[0];
-		scatterMatrix[0][1] -= average[0] * average[1];
-		scatterMatrix[0][2] -= average[0] * average[2];
-		scatterMatrix[1][1] -= average[1] * average[1];
-		scatterMatrix[1][2] -= average[1] * average[2];
-		scatterMatrix[2][2] -= average[2] * average[2];
+		final double count = Math.max(1.0, sums[9]);
+		average[0] = sums[0] / count;
+		average[1] = sums[1] / count;
+		average[2] = sums[2] / count;
+		scatterMatrix[0][0] = sums[3] / count - average[0] * average[0];
+		scatterMatrix[0][1] = sums[4] / count - average[0] * average[1];
+		scatterMatrix[0][2] = sums[5] / count - average[0] * average[2];
+		scatterMatrix[1][1] = sums[6] / count - average[1] * average[1];
+		scatterMatrix[1][2] = sums[7] / count - average[1] * average[2];
+		scatterMatrix[2][2] = sums[8] / count - average[2] * average[2];
 		scatterMatrix[2][1] = scatterMatrix[1][2];
 		scatterMatrix[2][0] = scatterMatrix[0][2];
 		scatterMatrix[1][0] = scatterMatrix[0][1];
@@ -964,12 +1042,12 @@ public class HyperStackReg_	implements PlugIn {
 	private ImagePlus getGray32 (
 		final String title,
 		final ImagePlus imp,
-		final double[] colorWeights
+		final double[] colorWeights,
+		final float[] gray
 	) {
 		final int length = imp.getWidth() * imp.getHeight();
 		final ImagePlus gray32 = new ImagePlus(title,
-			new FloatProcessor(imp.getWidth(), imp.getHeight()));
-		final float[] gray = (float[])gray32.getProcessor().getPixels();
+			new FloatProcessor(imp.getWidth(), imp.getHeight(), gray));
 		double r;
 		double g;
 		double b;
@@ -1306,982 +1384,560 @@ public class HyperStackReg_	implements PlugIn {
 	} /* end QRdecomposition */
 
 /*------------------------------------------------------------------*/
-	private ImagePlus registerSlice (ImagePlus source, 	final ImagePlus target,
-		final ImagePlus imp, final int width, final int height, final int transformation,
-		final double[][] globalTransform,	final double[][] anchorPoints,
-		final double[] colorWeights, final int s) {
-		imp.setSlice(s); // this is source slice, which needs to be warped
-		try {
-			Object turboReg = null;
-			Method method = null;
-			double[][] sourcePoints = null;
-			double[][] targetPoints = null;
-			double[][] localTransform = null;
-			switch (imp.getType()) {
-				case ImagePlus.COLOR_256:
-				case ImagePlus.COLOR_RGB: {
-					source = getGray32("StackRegSource", imp, colorWeights);
-					break;
-				}
-				case ImagePlus.GRAY8: {
-					source = new ImagePlus("StackRegSource", new ByteProcessor(
-						width, height, (byte[])imp.getProcessor().getPixels(),
-						imp.getProcessor().getColorModel()));
-					break;
-				}
-				case ImagePlus.GRAY16: {
-					source = new ImagePlus("StackRegSource", new ShortProcessor(
-						width, height, (short[])imp.getProcessor().getPixels(),
-						imp.getProcessor().getColorModel()));
-					break;
-				}
-				case ImagePlus.GRAY32: {
-					source = new ImagePlus("StackRegSource", new FloatProcessor(
-						width, height, (float[])imp.getProcessor().getPixels(),
-						imp.getProcessor().getColorModel()));
-					break;
-				}
-				default: {
-					IJ.error("Unexpected image type");
-					return(null);
-				}
+/* Frames of the selected channels that chain k is estimated from: Z-slice
+	k, or, with one transformation per frame, the Z projection or the
+	chosen Z-slice, cropped to the estimation rectangle and binned. */
+	private ImagePlus getProxy (final ImagePlus imp, final int[] proxyChannels, final int k) {
+		final int projection = ((zMode == 1) || (zMode == 2)) ? zMode : ProxyStack.NO_PROJECTION;
+		final int z = (zMode == 3) ? zEstimation : k;
+		final ProxyStack proxy = new ProxyStack(imp, proxyChannels, luts, z, projection, estimationRect, binning);
+		if ((proxyChannels.length > 1) && (channelMerge == 1)) {
+			proxy.setWeights(proxy.getNormalizingWeights(tSlice));
+		}
+		else if ((proxyChannels.length > 1) && (channelMerge == 2)) {
+			final double[] weights = new double[proxyChannels.length];
+			for (int i = 0; (i < proxyChannels.length); i++) {
+				weights[i] = channelWeights[proxyChannels[i] - 1];
 			}
-			final FileSaver sourceFile = new FileSaver(source);
-			final String sourcePathAndFileName =
-				IJ.getDirectory("temp") + source.getTitle();
-			sourceFile.saveAsTiff(sourcePathAndFileName);
-			final FileSaver targetFile = new FileSaver(target);
-			final String targetPathAndFileName =
-				IJ.getDirectory("temp") + target.getTitle();
-			targetFile.saveAsTiff(targetPathAndFileName);
-			
-			
-			if (loadPathAndFilename==""){//if we've specified a transformation to load, we needen't bother with aligning them again
-			switch (transformation) {
-				case 0: {
-					turboReg = IJ.runPlugIn("TurboReg_", "-align"
-						+ " -file " + sourcePathAndFileName
-						+ " 0 0 " + (width - 1) + " " + (height - 1)
-						+ " -file " + targetPathAndFileName
-						+ " 0 0 " + (width - 1) + " " + (height - 1)
-						+ " -translation"
-						+ " " + (width / 2) + " " + (height / 2)
-						+ " " + (width / 2) + " " + (height / 2)
-						+ " -hideOutput"
-					);
-					break;
-				}
-				case 1: {
-					turboReg = IJ.runPlugIn("TurboReg_", "-align"
-						+ " -file " + sourcePathAndFileName
-						+ " 0 0 " + (width - 1) + " " + (height - 1)
-						+ " -file " + targetPathAndFileName
-						+ " 0 0 " + (width - 1) + " " + (height - 1)
-						+ " -rigidBody"
-						+ " " + (width / 2) + " " + (height / 2)
-						+ " " + (width / 2) + " " + (height / 2)
-						+ " " + (width / 2) + " " + (height / 4)
-						+ " " + (width / 2) + " " + (height / 4)
-						+ " " + (width / 2) + " " + ((3 * height) / 4)
-						+ " " + (width / 2) + " " + ((3 * height) / 4)
-						+ " -hideOutput"
-					);
-					break;
+			proxy.setWeights(weights);
+		}
+		final ImagePlus impCurr = new ImagePlus(imageTitle+((projection == ProxyStack.NO_PROJECTION) ? " Z="+z : " Z projection"), proxy);
+		impCurr.setTypeToColor256(); // 8-bit frames with a color LUT are registered as RGB, as before
+		return(impCurr);
+	} /* end getProxy */
+
+/*------------------------------------------------------------------*/
+/* Color weights of Z-slice k, or null if its frames are gray. Both chains
+	of the slice use the same weights, so they are computed once, before. */
+	private double[] getSliceColorWeights (final ImagePlus imp, final int[] proxyChannels, final int k) {
+		final ImagePlus impCurr = getProxy(imp, proxyChannels, k);
+		switch (impCurr.getType()) {
+			case ImagePlus.COLOR_256:
+			case ImagePlus.COLOR_RGB: {
+				return(getColorWeightsFromPrincipalComponents(impCurr));
+			}
+			default: {
+				return(null);
+			}
+		}
+	} /* end getSliceColorWeights */
+
+/*------------------------------------------------------------------*/
+/* Estimation of one chain of Z-slice k: registers the frames from the
+	target frame to the first one (step -1) or to the last one (step 1)
+	and records the landmarks of every frame. Only keyframes are registered,
+	each one onto the keyframe before it; the frames in between are
+	interpolated. The keyframe interval shrinks when the landmarks move by
+	more than keyframeThreshold pixels between keyframes. The chain works
+	on its own images, so any number of chains can run at once. */
+	private boolean estimateChain (final ImagePlus imp, final int[] proxyChannels, final int k, final int step,
+		final int width, final int height, final int transformation, final int targetSlice,
+		final double[] colorWeights) {
+		final ImagePlus impCurr = getProxy(imp, proxyChannels, k);
+		if (readPlanes != null)
+			((ProxyStack)impCurr.getStack()).sharePlanes(readPlanes, targetSlice);
+		impCurr.setSlice(targetSlice);
+		final double[][] anchorPoints = getAnchorPoints(transformation, width, height);
+		if (anchorPoints == null)
+			return(false);
+	
+		final Workspace workspace = new Workspace();
+		ImagePlus source = null;
+		ImagePlus target = null;
+		switch (impCurr.getType()) {
+			case ImagePlus.COLOR_256:
+			case ImagePlus.COLOR_RGB: {
+				target = getGray32("StackRegTarget", impCurr, colorWeights, workspace.getGray(width * height, null, null));
+				break;
+			}
+			case ImagePlus.GRAY8:
+			case ImagePlus.GRAY16:
+			case ImagePlus.GRAY32: {
+				target = new ImagePlus("StackRegTarget", impCurr.getProcessor().duplicate());
+				break;
+			}
+			default: {
+				IJ.error("Unexpected image type");
+				return(false);
+			}
+		}
+
+		final double[][] globalTransform = {
+			{1.0, 0.0, 0.0},
+			{0.0, 1.0, 0.0},
+			{0.0, 0.0, 1.0}
+		};
+		final Aligner aligner = newAligner(workspace);
+		// phase correlation registers every frame onto the target frame; the last registered frame is then kept apart
+		final ImagePlus registered = (registration == 2) ? new ImagePlus("StackRegLast", target.getProcessor()) : target;
+		final double[][] fullAnchorPoints = getAnchorPoints(transformation, imp.getWidth(), imp.getHeight());
+		final double cx = 0.5 * (imp.getWidth() - 1);
+		final double cy = 0.5 * (imp.getHeight() - 1);
+		final int last = (step < 0) ? 1 : numFr;
+		double[][] keyTransform = {
+			{1.0, 0.0, 0.0},
+			{0.0, 1.0, 0.0},
+			{0.0, 0.0, 1.0}
+		};
+		int interval = keyframeInterval;
+		double[][] lastMotion = null;
+		int lastInterval = 0;
+		for (int key = targetSlice; (key != last); ) {
+			final int s = (step * (last - key) > interval) ? (key + step * interval) : last;
+			// constant velocity: the motion since the last keyframe, rescaled to the new interval, is the first guess
+			final double[][] guess = (warmStart && (lastMotion != null)) ? toProxyFrame(interpolateTransform(
+				new double[][] {{1.0, 0.0, 0.0}, {0.0, 1.0, 0.0}, {0.0, 0.0, 1.0}}, lastMotion,
+				(double)((s - key) * step) / (double)lastInterval, transformation, cx, cy)) : null;
+			source = registerSlice(source, target, registered, impCurr, width, height,	transformation, globalTransform, anchorPoints, aligner, guess, workspace, colorWeights, k, s);
+			if (source == null)
+				return(false);
+			if ((s - key) * step > 1) {
+				if (!writeInterpolatedFrames(k, key, s, step, keyTransform, globalTransform, transformation, fullAnchorPoints, cx, cy))
+					return(false);
+			}
+			if (!postFrames(k, key + step, s, step))
+				return(false);
+			lastMotion = getLocalTransform(globalTransform, keyTransform);
+			lastInterval = (s - key) * step;
+			if (keyframeThreshold > 0.0) {
+				final double drift = getLandmarkDrift(lastMotion, fullAnchorPoints) / lastInterval;
+				interval = (drift > 0.0) ? (int)Math.max(1.0, Math.min(keyframeInterval, Math.floor(keyframeThreshold / drift))) : keyframeInterval;
+			}
+			keyTransform = new double[][] {
+				{globalTransform[0][0], globalTransform[0][1], globalTransform[0][2]},
+				{globalTransform[1][0], globalTransform[1][1], globalTransform[1][2]},
+				{globalTransform[2][0], globalTransform[2][1], globalTransform[2][2]}
+			};
+			key = s;
+		}
+		impCurr.close();
+		return(true);
+	} /* end estimateChain */
+
+/*------------------------------------------------------------------*/
+/* Hands the frames from up to to of chain z, whose records are written,
+	over to the warp threads of the pipelined mode; does nothing otherwise.
+	Waits while the queue is full. Returns false once a warp has failed. */
+	private boolean postFrames (final int z, final int from, final int to, final int step) {
+		if (readyFrames == null)
+			return(true);
+		try {
+			for (int t = from; (t != to + step) && !warpFailed.get(); t += step) {
+				readyFrames.put(new int[] {z, t});
+			}
+		} catch (InterruptedException e) {
+			return(false);
+		}
+		return(!warpFailed.get());
+	} /* end postFrames */
+
+/*------------------------------------------------------------------*/
+/* Plane of the input to warp: the one a chain has already read, if it
+	was kept for the warp threads, or else the one read from the stack. */
+	private ImageProcessor takePlane (final ImageStack stack, final int plane) {
+		final Map<Integer, ImageProcessor> planes = readPlanes;
+		final ImageProcessor ip = (planes == null) ? null : planes.remove(plane);
+		return((ip == null) ? stack.getProcessor(plane) : ip);
+	} /* end takePlane */
+
+/*------------------------------------------------------------------*/
+/* Runs task.run(n) for n = 0 .. count-1 on up to threads threads; each
+	thread takes the next index that nobody has started yet. Once a task
+	fails, no new index is started. Returns false if any task failed. */
+	private static boolean forEachIndex (final int count, final int threads, final IndexedTask task) {
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		final Callable<?>[] callables = new Callable<?>[Math.max(1, Math.min(threads, count))];
+		for (int i = 0; (i < callables.length); i++) {
+			callables[i] = new Callable<Void>() {
+				public Void call() {
+					for (int n = next.getAndIncrement(); (n < count) && !failed.get(); n = next.getAndIncrement()) {
+						boolean done = false;
+						try {
+							done = task.run(n);
+						} finally {
+							if (!done)
+								failed.set(true);
+						}
+					}
+					return(null);
 				}
-				case 2: {
-					turboReg = IJ.runPlugIn("TurboReg_", "-align"
-						+ " -file " + sourcePathAndFileName
-						+ " 0 0 " + (width - 1) + " " + (height - 1)
-						+ " -file " + targetPathAndFileName
-						+ " 0 0 " + (width - 1) + " " + (height - 1)
-						+ " -scaledRotation"
-						+ " " + (width / 4) + " " + (height / 2)
-						+ " " + (width / 4) + " " + (height / 2)
-						+ " " + ((3 * width) / 4) + " " + (height / 2)
-						+ " " + ((3 * width) / 4) + " " + (height / 2)
-						+ " -hideOutput"
-					);
-					break;
+			};
+		}
+		ThreadUtil.startAndJoin(callables);
+		return(!failed.get());
+	} /* end forEachIndex */
+
+/*------------------------------------------------------------------*/
+/* Estimation: aligns slice s of imp onto the target with aligner, chains the
+	result into globalTransform and records both the landmarks and globalTransform.
+	A slice within motionTolerance of last, the last registered frame, is not
+	aligned; its pairwise transform is the identity and last stays, so that
+	motions too small to register one by one still add up until they are.
+	The target is last, except for phase correlation, whose target stays the
+	target frame and whose result is globalTransform itself; its record still
+	holds the landmarks of the pairwise transform from the frame before. The aligner
+	starts from guess, if not null.
+	The gray frame, the landmarks and the scratch matrix are taken from the
+	workspace of the chain. Nothing is warped here; the warps are done by
+	warpSlice in the apply phase. */
+	private ImagePlus registerSlice (ImagePlus source, 	final ImagePlus target, final ImagePlus last,
+		final ImagePlus imp, final int width, final int height, final int transformation,
+		final double[][] globalTransform, final double[][] anchorPoints, final Aligner aligner,
+		final double[][] guess, final Workspace workspace, final double[] colorWeights, final int z, final int s) {
+		imp.setSlice(s); // this is source slice, which needs to be aligned
+		switch (imp.getType()) {
+			case ImagePlus.COLOR_256:
+			case ImagePlus.COLOR_RGB: {
+				source = getGray32("StackRegSource", imp, colorWeights, workspace.getGray(width * height,
+					target.getProcessor().getPixels(), last.getProcessor().getPixels()));
+				break;
+			}
+			case ImagePlus.GRAY8: {
+				source = new ImagePlus("StackRegSource", new ByteProcessor(
+					width, height, (byte[])imp.getProcessor().getPixels(),
+					imp.getProcessor().getColorModel()));
+				break;
+			}
+			case ImagePlus.GRAY16: {
+				source = new ImagePlus("StackRegSource", new ShortProcessor(
+					width, height, (short[])imp.getProcessor().getPixels(),
+					imp.getProcessor().getColorModel()));
+				break;
+			}
+			case ImagePlus.GRAY32: {
+				source = new ImagePlus("StackRegSource", new FloatProcessor(
+					width, height, (float[])imp.getProcessor().getPixels(),
+					imp.getProcessor().getColorModel()));
+				break;
+			}
+			default: {
+				IJ.error("Unexpected image type");
+				return(null);
+			}
+		}
+		final double[][] sourcePoints = workspace.sourcePoints;
+		final double[][] targetPoints = workspace.targetPoints;
+		final boolean skipped = (motionTolerance > 0.0)
+			&& (getMotion(source.getProcessor(), last.getProcessor()) < motionTolerance);
+		if (skipped) {
+			for (int i = 0; (i < anchorPoints.length); i++) {
+				sourcePoints[i][0] = targetPoints[i][0] = anchorPoints[i][0];
+				sourcePoints[i][1] = targetPoints[i][1] = anchorPoints[i][1];
+			}
+			skippedFrames.incrementAndGet();
+		}
+		else {
+			if (!aligner.align(source, target, transformation, anchorPoints, guess, sourcePoints, targetPoints)) {
+				return(null);
+			}
+			alignerIterations.addAndGet(aligner.getIterations());
+			keyframes.incrementAndGet();
+			last.setProcessor(null, source.getProcessor());
+			// a gray source is a frame of the proxy, which must not be written over while it is last
+			((ProxyStack)imp.getStack()).keep(source.getProcessor().getPixels());
+		}
+		toFullFrame(sourcePoints, anchorPoints.length);
+		toFullFrame(targetPoints, anchorPoints.length);
+		final double[][] localTransform = (skipped) ? new double[][] {
+				{1.0, 0.0, 0.0},
+				{0.0, 1.0, 0.0},
+				{0.0, 0.0, 1.0}
+			}
+			: getTransformationMatrix(targetPoints, sourcePoints, transformation);
+		final double[][] rescued = workspace.matrix;
+		for (int i = 0; (i < 3); i++) {
+			for (int j = 0; (j < 3); j++) {
+				rescued[i][j] = globalTransform[i][j];
+			}
+		}
+		// phase correlation measures the whole transform from the target frame, so there is nothing to chain it to
+		final boolean fromTarget = (registration == 2) && !skipped;
+		for (int i = 0; (i < 3); i++) {
+			for (int j = 0; (j < 3); j++) {
+				if (fromTarget) {
+					globalTransform[i][j] = localTransform[i][j];
+					continue;
 				}
-				case 3: {
-					turboReg = IJ.runPlugIn("TurboReg_", "-align"
-						+ " -file " + sourcePathAndFileName
-						+ " 0 0 " + (width - 1) + " " + (height - 1)
-						+ " -file " + targetPathAndFileName
-						+ " 0 0 " + (width - 1) + " " + (height - 1)
-						+ " -affine"
-						+ " " + (width / 2) + " " + (height / 4)
-						+ " " + (width / 2) + " " + (height / 4)
-						+ " " + (width / 4) + " " + ((3 * height) / 4)
-						+ " " + (width / 4) + " " + ((3 * height) / 4)
-						+ " " + ((3 * width) / 4) + " " + ((3 * height) / 4)
-						+ " " + ((3 * width) / 4) + " " + ((3 * height) / 4)
-						+ " -hideOutput"
-					);
-					break;
+				globalTransform[i][j] = 0.0;
+				for (int k = 0; (k < 3); k++) {
+					globalTransform[i][j] +=
+						localTransform[i][k] * rescued[k][j];
 				}
-				default: {
-					IJ.error("Unexpected transformation");
-					return(null);
+			}
+		}
+		if (fromTarget) {
+			// the record keeps the landmarks of the pairwise transform from the frame before, like those of every other frame
+			final double[][] pairwise = getLocalTransform(globalTransform, rescued);
+			for (int i = 0; (i < anchorPoints.length); i++) {
+				final double x = targetPoints[i][0];
+				final double y = targetPoints[i][1];
+				sourcePoints[i][0] = pairwise[0][0] * x + pairwise[0][1] * y + pairwise[0][2];
+				sourcePoints[i][1] = pairwise[1][0] * x + pairwise[1][1] * y + pairwise[1][2];
+			}
+		}
+		try {
+			transformStore.write(z, s, (skipped) ? TransformStore.SKIPPED : TransformStore.REGISTERED,
+				tSlice, sourcePoints, targetPoints, globalTransform);
+		} catch (IOException e) {
+			IJ.error("Error writing to file.");
+			return(null);
+		}
+		return(source);
+	} /* end registerSlice */
+
+/*------------------------------------------------------------------*/
+/* Maps the first n landmarks from the estimation frame to full-frame,
+	full-resolution pixel coordinates. Binned pixel x covers the pixels
+	binning*x to binning*x+binning-1 of the estimation rectangle, so its
+	center is (x+0.5)*binning-0.5 from the corner of the rectangle. */
+	private void toFullFrame (final double[][] points, final int n) {
+		for (int i = 0; (i < n); i++) {
+			points[i][0] = (points[i][0] + 0.5) * binning - 0.5 + estimationRect.x;
+			points[i][1] = (points[i][1] + 0.5) * binning - 0.5 + estimationRect.y;
+		}
+	} /* end toFullFrame */
+
+/*------------------------------------------------------------------*/
+/* The full-frame transform matrix seen in the estimation frame, where
+	x_full = binning*x + o with o = 0.5*binning-0.5 plus the corner of the
+	estimation rectangle: the linear part is the same and the translation
+	becomes (A o + t - o) / binning. */
+	private double[][] toProxyFrame (final double[][] matrix) {
+		final double ox = 0.5 * binning - 0.5 + estimationRect.x;
+		final double oy = 0.5 * binning - 0.5 + estimationRect.y;
+		return(new double[][] {
+			{matrix[0][0], matrix[0][1], (matrix[0][0] * ox + matrix[0][1] * oy + matrix[0][2] - ox) / binning},
+			{matrix[1][0], matrix[1][1], (matrix[1][0] * ox + matrix[1][1] * oy + matrix[1][2] - oy) / binning},
+			{0.0, 0.0, 1.0}
+		});
+	} /* end toProxyFrame */
+
+/*------------------------------------------------------------------*/
+/* Cheap measure of the change between two frames: their mean absolute
+	difference, binned by 4 to average out the noise, relative to the
+	standard deviation of the target frame. The bins are summed in place,
+	so nothing is allocated. */
+	private static double getMotion (final ImageProcessor source, final ImageProcessor target) {
+		final int width = target.getWidth();
+		final int bin = (Math.min(width, target.getHeight()) >= 64) ? 4 : 1;
+		final int binnedWidth = width / bin;
+		final int binnedHeight = target.getHeight() / bin;
+		final int count = binnedWidth * binnedHeight;
+		double sum = 0.0;
+		double sumOfSquares = 0.0;
+		double difference = 0.0;
+		for (int v = 0; (v < binnedHeight); v++) {
+			for (int u = 0; (u < binnedWidth); u++) {
+				double a = 0.0;
+				double b = 0.0;
+				for (int y = v * bin; (y < (v + 1) * bin); y++) {
+					for (int x = u * bin, k = y * width + u * bin; (x < (u + 1) * bin); x++, k++) {
+						a += source.getf(k);
+						b += target.getf(k);
+					}
 				}
+				a /= bin * bin;
+				b /= bin * bin;
+				sum += b;
+				sumOfSquares += b * b;
+				difference += Math.abs(a - b);
 			}
-			if (turboReg == null) {
-				throw(new ClassNotFoundException());
-			}
-			target.setProcessor(null, source.getProcessor());
-			method = turboReg.getClass().getMethod("getSourcePoints",	(Class[])null);
-			sourcePoints = (double[][])method.invoke(turboReg);
-			method = turboReg.getClass().getMethod("getTargetPoints", (Class[])null);
-			targetPoints = (double[][])method.invoke(turboReg);
-	//*************		
-			if (saveTransform)
-				appendTransform(savePath+saveFile, s, tSlice,sourcePoints,targetPoints, transformation);
-			} else {
-				sourcePoints=new double[3][2];
-				targetPoints=new double[3][2];
-				loadTransform(sourcePoints, targetPoints);
-				transformNumber++;
-			}
-			//*************
-			
-			
-			localTransform = getTransformationMatrix(targetPoints, sourcePoints,
-				transformation);
-			double[][] rescued =
-				{{globalTransform[0][0],
-				globalTransform[0][1],
-				globalTransform[0][2]},
-				{globalTransform[1][0],
-				globalTransform[1][1],
-				globalTransform[1][2]},
-				{globalTransform[2][0],
-				globalTransform[2][1],
-				globalTransform[2][2]}};
-			for (int i = 0; (i < 3); i++) {
-				for (int j = 0; (j < 3); j++) {
-					globalTransform[i][j] = 0.0;
-					for (int k = 0; (k < 3); k++) {
-						globalTransform[i][j] +=
-							localTransform[i][k] * rescued[k][j];
+		}
+		final double mean = sum / count;
+		final double deviation = Math.sqrt(Math.max(0.0, sumOfSquares / count - mean * mean));
+		difference /= count;
+		if (deviation == 0.0)
+			return((difference == 0.0) ? 0.0 : Double.POSITIVE_INFINITY);
+		return(difference / deviation);
+	} /* end getMotion */
+
+/*------------------------------------------------------------------*/
+/* Records of the frames after keyframe a up to keyframe b of chain z. The
+	transform of each frame is interpolated between the transforms of a and
+	b; its landmarks are those of the pairwise transform from the frame
+	before it, as if the frame had been registered. Keyframe b keeps its flag. */
+	private boolean writeInterpolatedFrames (final int z, final int a, final int b, final int step,
+		final double[][] transformA, final double[][] transformB, final int transformation,
+		final double[][] anchorPoints, final double cx, final double cy) {
+		double[][] previous = transformA;
+		for (int s = a + step; (s != b + step); s += step) {
+			final double[][] current = (s == b) ? transformB
+				: interpolateTransform(transformA, transformB, (double)(s - a) / (double)(b - a), transformation, cx, cy);
+			final double[][] sourcePoints = new double[3][2];
+			final double[][] targetPoints = new double[3][2];
+			final double[][] moved = transformPoints(getLocalTransform(current, previous), anchorPoints);
+			for (int i = 0; (i < anchorPoints.length); i++) {
+				sourcePoints[i][0] = moved[i][0];
+				sourcePoints[i][1] = moved[i][1];
+				targetPoints[i][0] = anchorPoints[i][0];
+				targetPoints[i][1] = anchorPoints[i][1];
+			}
+			try {
+				transformStore.write(z, s, (s == b) ? transformStore.readFlag(z, b) : TransformStore.INTERPOLATED,
+					tSlice, sourcePoints, targetPoints, current);
+			} catch (IOException e) {
+				IJ.error("Error writing to file.");
+				return(false);
+			}
+			previous = current;
+		}
+		return(true);
+	} /* end writeInterpolatedFrames */
+
+/*------------------------------------------------------------------*/
+/* Transform at the fraction w of the way from transform a to transform b.
+	Both are seen as a motion of the image center (cx, cy), which is
+	interpolated linearly, followed by their linear part about the center:
+	rotations by angle and scale, other transformations entry by entry. */
+	private double[][] interpolateTransform (final double[][] a, final double[][] b, final double w,
+		final int transformation, final double cx, final double cy) {
+		final double[][] matrix = new double[3][3];
+		switch (transformation) {
+			case 1: // Rigid Body
+			case 2: { // Scaled Rotation
+				final double angleA = Math.atan2(a[1][0], a[0][0]);
+				double delta = Math.atan2(b[1][0], b[0][0]) - angleA;
+				if (delta > Math.PI)
+					delta -= 2.0 * Math.PI;
+				else if (delta < -Math.PI)
+					delta += 2.0 * Math.PI;
+				final double angle = angleA + w * delta;
+				final double scale = (1.0 - w) * Math.hypot(a[0][0], a[1][0]) + w * Math.hypot(b[0][0], b[1][0]);
+				matrix[0][0] = scale * Math.cos(angle);
+				matrix[0][1] = -scale * Math.sin(angle);
+				matrix[1][0] = scale * Math.sin(angle);
+				matrix[1][1] = scale * Math.cos(angle);
+				break;
+			}
+			default: {
+				for (int i = 0; (i < 2); i++) {
+					for (int j = 0; (j < 2); j++) {
+						matrix[i][j] = (1.0 - w) * a[i][j] + w * b[i][j];
+					}
+				}
+			}
+		}
+		final double x = (1.0 - w) * (a[0][0] * cx + a[0][1] * cy + a[0][2]) + w * (b[0][0] * cx + b[0][1] * cy + b[0][2]);
+		final double y = (1.0 - w) * (a[1][0] * cx + a[1][1] * cy + a[1][2]) + w * (b[1][0] * cx + b[1][1] * cy + b[1][2]);
+		matrix[0][2] = x - matrix[0][0] * cx - matrix[0][1] * cy;
+		matrix[1][2] = y - matrix[1][0] * cx - matrix[1][1] * cy;
+		matrix[2][2] = 1.0;
+		return(matrix);
+	} /* end interpolateTransform */
+
+/*------------------------------------------------------------------*/
+/* Pairwise transform of a frame whose composed transform is current, from
+	the frame whose composed transform is previous: current x previous^-1. */
+	private double[][] getLocalTransform (final double[][] current, final double[][] previous) {
+		final double[][] inverse = {
+			{previous[0][0], previous[0][1], previous[0][2]},
+			{previous[1][0], previous[1][1], previous[1][2]},
+			{previous[2][0], previous[2][1], previous[2][2]}
+		};
+		invertGauss(inverse);
+		final double[][] local = new double[3][3];
+		for (int i = 0; (i < 3); i++) {
+			for (int j = 0; (j < 3); j++) {
+				for (int k = 0; (k < 3); k++) {
+					local[i][j] += current[i][k] * inverse[k][j];
+				}
+			}
+		}
+		return(local);
+	} /* end getLocalTransform */
+
+/*------------------------------------------------------------------*/
+/* Largest distance by which transform moves one of the anchor points. */
+	private double getLandmarkDrift (final double[][] transform, final double[][] anchorPoints) {
+		final double[][] moved = transformPoints(transform, anchorPoints);
+		double drift = 0.0;
+		for (int i = 0; (i < anchorPoints.length); i++) {
+			drift = Math.max(drift, Math.hypot(moved[i][0] - anchorPoints[i][0], moved[i][1] - anchorPoints[i][1]));
+		}
+		return(drift);
+	} /* end getLandmarkDrift */
+
+/*------------------------------------------------------------------*/
+/* Apply phase: returns frame ip warped by globalTransform, the transform
+	from the target frame to this frame, as a new processor. ip may wrap
+	the pixels of the original hyperstack, so it is only read. Gray frames
+	are warped by AffineWarper unless TurboReg was chosen. */
+	private ImageProcessor warpSlice (final ImageProcessor ip, final int type,
+		final int width, final int height,
+		final int transformation, final double[][] globalTransform,
+		final double[][] anchorPoints) {
+		if (!turboRegWarp) {
+			switch (type) {
+				case ImagePlus.COLOR_256: {
+					final int[] rgb = AffineWarper.warpRGB((int[])ip.convertToRGB().getPixels(),
+						width, height, globalTransform, interpolation);
+					final byte[] pixels = new byte[width * height];
+					for (int k = 0; (k < pixels.length); k++) {
+						pixels[k] = inverseLut.getIndex(rgb[k]);
 					}
+					return(new ByteProcessor(width, height, pixels, ip.getColorModel()));
+				}
+				case ImagePlus.COLOR_RGB:
+				case ImagePlus.GRAY8:
+				case ImagePlus.GRAY16:
+				case ImagePlus.GRAY32: {
+					return(AffineWarper.warp(ip, globalTransform, interpolation));
 				}
 			}
-			switch (imp.getType()) {
+		}
+		final String landmarks = getTurboRegLandmarks(transformation,
+			transformPoints(globalTransform, anchorPoints), anchorPoints);
+		if (landmarks == null) {
+			return(null);
+		}
+		final ImageProcessor warped;
+		try {
+			switch (type) {
 				case ImagePlus.COLOR_256: {
-					source = new ImagePlus("StackRegSource", new ByteProcessor(
-						width, height, (byte[])imp.getProcessor().getPixels(),
-						imp.getProcessor().getColorModel()));
-					ImageConverter converter = new ImageConverter(source);
+					final ImagePlus sourceRGB = new ImagePlus("StackRegSource", new ByteProcessor(
+						width, height, (byte[])ip.getPixels(), ip.getColorModel()));
+					ImageConverter converter = new ImageConverter(sourceRGB);
 					converter.convertToRGB();
-					Object turboRegR = null;
-					Object turboRegG = null;
-					Object turboRegB = null;
 					byte[] r = new byte[width * height];
 					byte[] g = new byte[width * height];
 					byte[] b = new byte[width * height];
-					((ColorProcessor)source.getProcessor()).getRGB(r, g, b);
-					final ImagePlus sourceR = new ImagePlus("StackRegSourceR",
-						new ByteProcessor(width, height));
-					final ImagePlus sourceG = new ImagePlus("StackRegSourceG",
-						new ByteProcessor(width, height));
-					final ImagePlus sourceB = new ImagePlus("StackRegSourceB",
-						new ByteProcessor(width, height));
-					sourceR.getProcessor().setPixels(r);
-					sourceG.getProcessor().setPixels(g);
-					sourceB.getProcessor().setPixels(b);
-					ImagePlus transformedSourceR = null;
-					ImagePlus transformedSourceG = null;
-					ImagePlus transformedSourceB = null;
-					final FileSaver sourceFileR = new FileSaver(sourceR);
-					final String sourcePathAndFileNameR =
-						IJ.getDirectory("temp") + sourceR.getTitle();
-					sourceFileR.saveAsTiff(sourcePathAndFileNameR);
-					final FileSaver sourceFileG = new FileSaver(sourceG);
-					final String sourcePathAndFileNameG =
-						IJ.getDirectory("temp") + sourceG.getTitle();
-					sourceFileG.saveAsTiff(sourcePathAndFileNameG);
-					final FileSaver sourceFileB = new FileSaver(sourceB);
-					final String sourcePathAndFileNameB =
-						IJ.getDirectory("temp") + sourceB.getTitle();
-					sourceFileB.saveAsTiff(sourcePathAndFileNameB);
-					switch (transformation) {
-						case 0: {
-							sourcePoints = new double[1][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-								}
-							}
-							turboRegR = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameR
-								+ " " + width
-								+ " " + height
-								+ " -translation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							if (turboRegR == null) {
-								throw(new ClassNotFoundException());
-							}
-							turboRegG = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameG
-								+ " " + width
-								+ " " + height
-								+ " -translation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							turboRegB = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameB
-								+ " " + width
-								+ " " + height
-								+ " -translation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 1: {
-							sourcePoints = new double[3][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								sourcePoints[2][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-									sourcePoints[2][i] += globalTransform[i][j]
-										* anchorPoints[2][j];
-								}
-							}
-							turboRegR = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameR
-								+ " " + width + " " + height
-								+ " -rigidBody"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + (width / 2)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							if (turboRegR == null) {
-								throw(new ClassNotFoundException());
-							}
-							turboRegG = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameG
-								+ " " + width + " " + height
-								+ " -rigidBody"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + (width / 2)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							turboRegB = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameB
-								+ " " + width
-								+ " " + height
-								+ " -rigidBody"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + (width / 2)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 2: {
-							sourcePoints = new double[2][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-								}
-							}
-							turboRegR = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameR
-								+ " " + width
-								+ " " + height
-								+ " -scaledRotation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 4)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							if (turboRegR == null) {
-								throw(new ClassNotFoundException());
-							}
-							turboRegG = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameG
-								+ " " + width
-								+ " " + height
-								+ " -scaledRotation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 4)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							turboRegB = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameB
-								+ " " + width
-								+ " " + height
-								+ " -scaledRotation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 4)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 3: {
-							sourcePoints = new double[3][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								sourcePoints[2][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-									sourcePoints[2][i] += globalTransform[i][j]
-										* anchorPoints[2][j];
-								}
-							}
-							turboRegR = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameR
-								+ " " + width
-								+ " " + height
-								+ " -affine"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 4)
-								+ " " + ((3 * height) / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							if (turboRegR == null) {
-								throw(new ClassNotFoundException());
-							}
-							turboRegG = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameG
-								+ " " + width
-								+ " " + height
-								+ " -affine"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 4)
-								+ " " + ((3 * height) / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							turboRegB = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameB
-								+ " " + width
-								+ " " + height
-								+ " -affine"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 4)
-								+ " " + ((3 * height) / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						default: {
-							IJ.error("Unexpected transformation");
-							return(null);
-						}
-					}
-					method = turboRegR.getClass().getMethod("getTransformedImage",
-						(Class[])null);
-					transformedSourceR = (ImagePlus)method.invoke(turboRegR);
-					method = turboRegG.getClass().getMethod("getTransformedImage",
-						(Class[])null);
-					transformedSourceG = (ImagePlus)method.invoke(turboRegG);
-					method = turboRegB.getClass().getMethod("getTransformedImage",
-						(Class[])null);
-					transformedSourceB = (ImagePlus)method.invoke(turboRegB);
-					transformedSourceR.getStack().deleteLastSlice();
-					transformedSourceG.getStack().deleteLastSlice();
-					transformedSourceB.getStack().deleteLastSlice();
-					transformedSourceR.getProcessor().setMinAndMax(0.0, 255.0);
-					transformedSourceG.getProcessor().setMinAndMax(0.0, 255.0);
-					transformedSourceB.getProcessor().setMinAndMax(0.0, 255.0);
-					ImageConverter converterR =
-						new ImageConverter(transformedSourceR);
-					ImageConverter converterG =
-						new ImageConverter(transformedSourceG);
-					ImageConverter converterB =
-						new ImageConverter(transformedSourceB);
-					converterR.convertToGray8();
-					converterG.convertToGray8();
-					converterB.convertToGray8();
-					final IndexColorModel icm =
-						(IndexColorModel)imp.getProcessor().getColorModel();
-					final byte[] pixels = (byte[])imp.getProcessor().getPixels();
-					r = (byte[])transformedSourceR.getProcessor().getPixels();
-					g = (byte[])transformedSourceG.getProcessor().getPixels();
-					b = (byte[])transformedSourceB.getProcessor().getPixels();
-					final int[] color = new int[4];
-					color[3] = 255;
+					((ColorProcessor)sourceRGB.getProcessor()).getRGB(r, g, b);
+					r = transformChannelWithTurboReg("StackRegSourceR", r, width, height, landmarks);
+					g = transformChannelWithTurboReg("StackRegSourceG", g, width, height, landmarks);
+					b = transformChannelWithTurboReg("StackRegSourceB", b, width, height, landmarks);
+					final byte[] pixels = new byte[width * height];
 					for (int k = 0; (k < pixels.length); k++) {
-						color[0] = (int)(r[k] & 0xFF);
-						color[1] = (int)(g[k] & 0xFF);
-						color[2] = (int)(b[k] & 0xFF);
-						pixels[k] = (byte)icm.getDataElement(color, 0);
+						pixels[k] = inverseLut.getIndex(((r[k] & 0xFF) << 16) | ((g[k] & 0xFF) << 8) | (b[k] & 0xFF));
 					}
+					warped = new ByteProcessor(width, height, pixels, ip.getColorModel());
 					break;
 				}
 				case ImagePlus.COLOR_RGB: {
-					Object turboRegR = null;
-					Object turboRegG = null;
-					Object turboRegB = null;
 					final byte[] r = new byte[width * height];
 					final byte[] g = new byte[width * height];
 					final byte[] b = new byte[width * height];
-					((ColorProcessor)imp.getProcessor()).getRGB(r, g, b);
-					final ImagePlus sourceR = new ImagePlus("StackRegSourceR",
-						new ByteProcessor(width, height));
-					final ImagePlus sourceG = new ImagePlus("StackRegSourceG",
-						new ByteProcessor(width, height));
-					final ImagePlus sourceB = new ImagePlus("StackRegSourceB",
-						new ByteProcessor(width, height));
-					sourceR.getProcessor().setPixels(r);
-					sourceG.getProcessor().setPixels(g);
-					sourceB.getProcessor().setPixels(b);
-					ImagePlus transformedSourceR = null;
-					ImagePlus transformedSourceG = null;
-					ImagePlus transformedSourceB = null;
-					final FileSaver sourceFileR = new FileSaver(sourceR);
-					final String sourcePathAndFileNameR =
-						IJ.getDirectory("temp") + sourceR.getTitle();
-					sourceFileR.saveAsTiff(sourcePathAndFileNameR);
-					final FileSaver sourceFileG = new FileSaver(sourceG);
-					final String sourcePathAndFileNameG =
-						IJ.getDirectory("temp") + sourceG.getTitle();
-					sourceFileG.saveAsTiff(sourcePathAndFileNameG);
-					final FileSaver sourceFileB = new FileSaver(sourceB);
-					final String sourcePathAndFileNameB =
-						IJ.getDirectory("temp") + sourceB.getTitle();
-					sourceFileB.saveAsTiff(sourcePathAndFileNameB);
-					switch (transformation) {
-						case 0: {
-							sourcePoints = new double[1][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-								}
-							}
-							turboRegR = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameR
-								+ " " + width
-								+ " " + height
-								+ " -translation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							if (turboRegR == null) {
-								throw(new ClassNotFoundException());
-							}
-							turboRegG = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameG
-								+ " " + width
-								+ " " + height
-								+ " -translation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							turboRegB = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameB
-								+ " " + width
-								+ " " + height
-								+ " -translation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 1: {
-							sourcePoints = new double[3][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								sourcePoints[2][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-									sourcePoints[2][i] += globalTransform[i][j]
-										* anchorPoints[2][j];
-								}
-							}
-							turboRegR = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameR
-								+ " " + width
-								+ " " + height
-								+ " -rigidBody"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + (width / 2)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							if (turboRegR == null) {
-								throw(new ClassNotFoundException());
-							}
-							turboRegG = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameG
-								+ " " + width + " " + height
-								+ " -rigidBody"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + (width / 2)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							turboRegB = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameB
-								+ " " + width
-								+ " " + height
-								+ " -rigidBody"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + (width / 2)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 2: {
-							sourcePoints = new double[2][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-								}
-							}
-							turboRegR = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameR
-								+ " " + width
-								+ " " + height
-								+ " -scaledRotation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 4)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							if (turboRegR == null) {
-								throw(new ClassNotFoundException());
-							}
-							turboRegG = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameG
-								+ " " + width
-								+ " " + height
-								+ " -scaledRotation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 4)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							turboRegB = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameB
-								+ " " + width
-								+ " " + height
-								+ " -scaledRotation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 4)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 3: {
-							sourcePoints = new double[3][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								sourcePoints[2][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-									sourcePoints[2][i] += globalTransform[i][j]
-										* anchorPoints[2][j];
-								}
-							}
-							turboRegR = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameR
-								+ " " + width
-								+ " " + height
-								+ " -affine"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 4)
-								+ " " + ((3 * height) / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							if (turboRegR == null) {
-								throw(new ClassNotFoundException());
-							}
-							turboRegG = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameG
-								+ " " + width
-								+ " " + height
-								+ " -affine"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 4)
-								+ " " + ((3 * height) / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							turboRegB = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileNameB
-								+ " " + width
-								+ " " + height
-								+ " -affine"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 4)
-								+ " " + ((3 * height) / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						default: {
-							IJ.error("Unexpected transformation");
-							return(null);
-						}
-					}
-					method = turboRegR.getClass().getMethod("getTransformedImage",
-						(Class[])null);
-					transformedSourceR = (ImagePlus)method.invoke(turboRegR);
-					method = turboRegG.getClass().getMethod("getTransformedImage",
-						(Class[])null);
-					transformedSourceG = (ImagePlus)method.invoke(turboRegG);
-					method = turboRegB.getClass().getMethod("getTransformedImage",
-						(Class[])null);
-					transformedSourceB = (ImagePlus)method.invoke(turboRegB);
-					transformedSourceR.getStack().deleteLastSlice();
-					transformedSourceG.getStack().deleteLastSlice();
-					transformedSourceB.getStack().deleteLastSlice();
-					transformedSourceR.getProcessor().setMinAndMax(0.0, 255.0);
-					transformedSourceG.getProcessor().setMinAndMax(0.0, 255.0);
-					transformedSourceB.getProcessor().setMinAndMax(0.0, 255.0);
-					ImageConverter converterR =
-						new ImageConverter(transformedSourceR);
-					ImageConverter converterG =
-						new ImageConverter(transformedSourceG);
-					ImageConverter converterB =
-						new ImageConverter(transformedSourceB);
-					converterR.convertToGray8();
-					converterG.convertToGray8();
-					converterB.convertToGray8();
-					((ColorProcessor)imp.getProcessor()).setRGB(
-						(byte[])transformedSourceR.getProcessor().getPixels(),
-						(byte[])transformedSourceG.getProcessor().getPixels(),
-						(byte[])transformedSourceB.getProcessor().getPixels());
+					((ColorProcessor)ip).getRGB(r, g, b);
+					warped = new ColorProcessor(width, height);
+					((ColorProcessor)warped).setRGB(
+						transformChannelWithTurboReg("StackRegSourceR", r, width, height, landmarks),
+						transformChannelWithTurboReg("StackRegSourceG", g, width, height, landmarks),
+						transformChannelWithTurboReg("StackRegSourceB", b, width, height, landmarks));
 					break;
 				}
 				case ImagePlus.GRAY8:
 				case ImagePlus.GRAY16:
 				case ImagePlus.GRAY32: {
-					switch (transformation) {
-						case 0: {
-							sourcePoints = new double[1][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-								}
-							}
-							turboReg = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileName
-								+ " " + width
-								+ " " + height
-								+ " -translation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 1: {
-							sourcePoints = new double[3][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								sourcePoints[2][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-									sourcePoints[2][i] += globalTransform[i][j]
-										* anchorPoints[2][j];
-								}
-							}
-							turboReg = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileName
-								+ " " + width
-								+ " " + height
-								+ " -rigidBody"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + (width / 2)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 2: {
-							sourcePoints = new double[2][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-								}
-							}
-							turboReg = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileName
-								+ " " + width
-								+ " " + height
-								+ " -scaledRotation"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 4)
-								+ " " + (height / 2)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + (height / 2)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						case 3: {
-							sourcePoints = new double[3][3];
-							for (int i = 0; (i < 3); i++) {
-								sourcePoints[0][i] = 0.0;
-								sourcePoints[1][i] = 0.0;
-								sourcePoints[2][i] = 0.0;
-								for (int j = 0; (j < 3); j++) {
-									sourcePoints[0][i] += globalTransform[i][j]
-										* anchorPoints[0][j];
-									sourcePoints[1][i] += globalTransform[i][j]
-										* anchorPoints[1][j];
-									sourcePoints[2][i] += globalTransform[i][j]
-										* anchorPoints[2][j];
-								}
-							}
-							turboReg = IJ.runPlugIn("TurboReg_", "-transform"
-								+ " -file " + sourcePathAndFileName
-								+ " " + width
-								+ " " + height
-								+ " -affine"
-								+ " " + sourcePoints[0][0]
-								+ " " + sourcePoints[0][1]
-								+ " " + (width / 2)
-								+ " " + (height / 4)
-								+ " " + sourcePoints[1][0]
-								+ " " + sourcePoints[1][1]
-								+ " " + (width / 4)
-								+ " " + ((3 * height) / 4)
-								+ " " + sourcePoints[2][0]
-								+ " " + sourcePoints[2][1]
-								+ " " + ((3 * width) / 4)
-								+ " " + ((3 * height) / 4)
-								+ " -hideOutput"
-							);
-							break;
-						}
-						default: {
-							IJ.error("Unexpected transformation");
-							return(null);
-						}
-					}
-					if (turboReg == null) {
-						throw(new ClassNotFoundException());
+					final ImagePlus source = new ImagePlus("StackRegSource", ip);
+					final String sourceImage = shareWithTurboReg(source);
+					ImagePlus transformedSource = null;
+					try {
+						transformedSource = transformWithTurboReg(sourceImage,
+							width, height, landmarks);
+					} finally {
+						releaseFromTurboReg(source);
 					}
-					method = turboReg.getClass().getMethod("getTransformedImage",
-						(Class[])null);
-					ImagePlus transformedSource =
-						(ImagePlus)method.invoke(turboReg);
-					transformedSource.getStack().deleteLastSlice();
-					switch (imp.getType()) {
+					switch (type) {
 						case ImagePlus.GRAY8: {
 							transformedSource.getProcessor().setMinAndMax(
 								0.0, 255.0);
@@ -2306,7 +1962,7 @@ public class HyperStackReg_	implements PlugIn {
 							return(null);
 						}
 					}
-					imp.setProcessor(null, transformedSource.getProcessor());
+					warped = transformedSource.getProcessor();
 					break;
 				}
 				default: {
@@ -2328,7 +1984,2424 @@ public class HyperStackReg_	implements PlugIn {
 				+ "http://bigwww.epfl.ch/thevenaz/turboreg/");
 			return(null);
 		}
-		return(source);
-	} /* end registerSlice */
+		return(warped);
+	} /* end warpSlice */
+
+/*------------------------------------------------------------------*/
+	private double[][] getAnchorPoints (
+		final int transformation,
+		final int width,
+		final int height
+	) {
+		double[][] anchorPoints = null;
+		switch (transformation) {
+			case 0: { // Translation
+				anchorPoints = new double[1][3];
+				anchorPoints[0][0] = (double)(width / 2);
+				anchorPoints[0][1] = (double)(height / 2);
+				anchorPoints[0][2] = 1.0;
+				break;
+			}
+			case 1: { // Rigid Body
+				anchorPoints = new double[3][3];
+				anchorPoints[0][0] = (double)(width / 2);
+				anchorPoints[0][1] = (double)(height / 2);
+				anchorPoints[0][2] = 1.0;
+				anchorPoints[1][0] = (double)(width / 2);
+				anchorPoints[1][1] = (double)(height / 4);
+				anchorPoints[1][2] = 1.0;
+				anchorPoints[2][0] = (double)(width / 2);
+				anchorPoints[2][1] = (double)((3 * height) / 4);
+				anchorPoints[2][2] = 1.0;
+				break;
+			}
+			case 2: { // Scaled Rotation
+				anchorPoints = new double[2][3];
+				anchorPoints[0][0] = (double)(width / 4);
+				anchorPoints[0][1] = (double)(height / 2);
+				anchorPoints[0][2] = 1.0;
+				anchorPoints[1][0] = (double)((3 * width) / 4);
+				anchorPoints[1][1] = (double)(height / 2);
+				anchorPoints[1][2] = 1.0;
+				break;
+			}
+			case 3: { // Affine
+				anchorPoints = new double[3][3];
+				anchorPoints[0][0] = (double)(width / 2);
+				anchorPoints[0][1] = (double)(height / 4);
+				anchorPoints[0][2] = 1.0;
+				anchorPoints[1][0] = (double)(width / 4);
+				anchorPoints[1][1] = (double)((3 * height) / 4);
+				anchorPoints[1][2] = 1.0;
+				anchorPoints[2][0] = (double)((3 * width) / 4);
+				anchorPoints[2][1] = (double)((3 * height) / 4);
+				anchorPoints[2][2] = 1.0;
+				break;
+			}
+			default: {
+				IJ.error("Unexpected transformation");
+			}
+		}
+		return(anchorPoints);
+	} /* end getAnchorPoints */
+
+/*------------------------------------------------------------------*/
+	private double[][] transformPoints (
+		final double[][] matrix,
+		final double[][] points
+	) {
+		final double[][] transformed = new double[points.length][3];
+		for (int n = 0; (n < points.length); n++) {
+			for (int i = 0; (i < 3); i++) {
+				transformed[n][i] = 0.0;
+				for (int j = 0; (j < 3); j++) {
+					transformed[n][i] += matrix[i][j] * points[n][j];
+				}
+			}
+		}
+		return(transformed);
+	} /* end transformPoints */
+
+/*------------------------------------------------------------------*/
+	private String getTurboRegLandmarks (
+		final int transformation,
+		final double[][] sourcePoints,
+		final double[][] targetPoints
+	) {
+		String landmarks = null;
+		switch (transformation) {
+			case 0: {
+				landmarks = " -translation";
+				break;
+			}
+			case 1: {
+				landmarks = " -rigidBody";
+				break;
+			}
+			case 2: {
+				landmarks = " -scaledRotation";
+				break;
+			}
+			case 3: {
+				landmarks = " -affine";
+				break;
+			}
+			default: {
+				IJ.error("Unexpected transformation");
+				return(null);
+			}
+		}
+		for (int i = 0; (i < targetPoints.length); i++) {
+			landmarks += " " + getTurboRegCoordinate(sourcePoints[i][0])
+				+ " " + getTurboRegCoordinate(sourcePoints[i][1])
+				+ " " + getTurboRegCoordinate(targetPoints[i][0])
+				+ " " + getTurboRegCoordinate(targetPoints[i][1]);
+		}
+		return(landmarks);
+	} /* end getTurboRegLandmarks */
+
+/*------------------------------------------------------------------*/
+	private String getTurboRegCoordinate (
+		final double coordinate
+	) {
+		// the anchors are whole pixels; keep writing them the way TurboReg always got them
+		if (coordinate == Math.rint(coordinate) && Math.abs(coordinate) < Integer.MAX_VALUE)
+			return(String.valueOf((int)coordinate));
+		return(String.valueOf(coordinate));
+	} /* end getTurboRegCoordinate */
+
+/*------------------------------------------------------------------*/
+	private ImagePlus transformWithTurboReg (
+		final String sourceImage,
+		final int width,
+		final int height,
+		final String landmarks
+	) throws ClassNotFoundException, NoSuchMethodException,
+		IllegalAccessException, InvocationTargetException {
+		final Object turboReg = IJ.runPlugIn("TurboReg_", "-transform"
+			+ sourceImage
+			+ " " + width
+			+ " " + height
+			+ landmarks
+			+ " -hideOutput"
+		);
+		if (turboReg == null) {
+			throw(new ClassNotFoundException());
+		}
+		final Method method = turboReg.getClass().getMethod("getTransformedImage",
+			(Class[])null);
+		final ImagePlus transformedSource = (ImagePlus)method.invoke(turboReg);
+		transformedSource.getStack().deleteLastSlice();
+		return(transformedSource);
+	} /* end transformWithTurboReg */
+
+/*------------------------------------------------------------------*/
+	private byte[] transformChannelWithTurboReg (
+		final String title,
+		final byte[] channel,
+		final int width,
+		final int height,
+		final String landmarks
+	) throws ClassNotFoundException, NoSuchMethodException,
+		IllegalAccessException, InvocationTargetException {
+		final ImagePlus source = new ImagePlus(title,
+			new ByteProcessor(width, height, channel, null));
+		final String sourceImage = shareWithTurboReg(source);
+		ImagePlus transformedSource = null;
+		try {
+			transformedSource = transformWithTurboReg(sourceImage,
+				width, height, landmarks);
+		} finally {
+			releaseFromTurboReg(source);
+		}
+		transformedSource.getProcessor().setMinAndMax(0.0, 255.0);
+		final ImageConverter converter = new ImageConverter(transformedSource);
+		converter.convertToGray8();
+		return((byte[])transformedSource.getProcessor().getPixels());
+	} /* end transformChannelWithTurboReg */
+
+/*------------------------------------------------------------------*/
+/* A new aligner of the kind chosen in the dialog; one per chain, since
+	aligners may keep buffers from one frame to the next. */
+	private Aligner newAligner (
+		final Workspace workspace
+	) {
+		switch (registration) {
+			case 1: {
+				return(new TurboRegAligner());
+			}
+			case 2: {
+				return(new PhaseCorrelationAligner(workspace));
+			}
+			default: {
+				return(new PyramidAligner(workspace));
+			}
+		}
+	} /* end newAligner */
+
+/*------------------------------------------------------------------*/
+	private static boolean isTurboRegInstalled (
+	) {
+		try {
+			IJ.getClassLoader().loadClass("TurboReg_");
+			return(true);
+		} catch (ClassNotFoundException e) {
+			return(false);
+		}
+	} /* end isTurboRegInstalled */
+
+/*------------------------------------------------------------------*/
+/* TurboReg reads its images either from a file (-file) or from an open
+	image with a given title (-window). In memory mode the images are
+	handed over as hidden batch-mode images, so no pixel goes to disk.
+	Side effect: ImageJ only finds batch-mode images by title while the
+	global Interpreter.batchMode is set, so it stays true, for every macro
+	and plugin, from the first share until the last releaseFromTurboReg,
+	which restores the value it had before. Every share must therefore be
+	released in a finally block; a share that fails releases itself. */
+	private String shareWithTurboReg (
+		final ImagePlus imp
+	) {
+		// unique title, so that an open image with the same name, or the image
+		// of another thread, is never picked up
+		if (!imp.getTitle().endsWith("" + imp.getID()))
+			imp.setTitle(imp.getTitle() + imp.getID());
+		if (!inMemory) {
+			final String pathAndFileName = IJ.getDirectory("temp") + imp.getTitle();
+			new FileSaver(imp).saveAsTiff(pathAndFileName);
+			return(" -file " + pathAndFileName);
+		}
+		synchronized (bridgeLock) {
+			if (bridgeUsers == 0) {
+				bridgeBatchMode = Interpreter.batchMode;
+				Interpreter.batchMode = true;
+			}
+			bridgeUsers++;
+			boolean shared = false;
+			try {
+				Interpreter.addBatchModeImage(imp);
+				shared = true;
+			} finally {
+				if (!shared) {
+					bridgeUsers--;
+					if (bridgeUsers == 0)
+						Interpreter.batchMode = bridgeBatchMode;
+				}
+			}
+		}
+		return(" -window " + imp.getTitle());
+	} /* end shareWithTurboReg */
+
+/*------------------------------------------------------------------*/
+	private void releaseFromTurboReg (
+		final ImagePlus imp
+	) {
+		if (!inMemory) {
+			new File(IJ.getDirectory("temp") + imp.getTitle()).delete();
+			return;
+		}
+		synchronized (bridgeLock) {
+			Interpreter.removeBatchModeImage(imp);
+			bridgeUsers--;
+			if (bridgeUsers == 0)
+				Interpreter.batchMode = bridgeBatchMode;
+		}
+	} /* end releaseFromTurboReg */
+
+/*------------------------------------------------------------------*/
+/* Affine warp of byte, short, float and RGB planes in Java: output(x) is
+	input(globalTransform x), zero where that falls outside the input, as
+	with TurboReg -transform. Samples are taken by nearest neighbor, linear
+	or cubic B-spline interpolation (mirror boundaries, prefiltered
+	coefficients) and stored at the bit depth of the input, rounded and
+	clamped, without any intermediate image or rescaling. The three
+	components of an RGB plane share the sample positions and weights. */
+	private static class AffineWarper {
+		static final int NEAREST = 0;
+		static final int LINEAR = 1;
+		static final int CUBIC = 2;
+		private static final double POLE = Math.sqrt(3.0) - 2.0;
+		private static final double EDGE = 1.0E-6;
+		private final int width, height, interpolation;
+		private final double[][] matrix;
+		private final int[] ix = new int[4];
+		private final int[] iy = new int[4];
+		private final double[] wx = new double[4];
+		private final double[] wy = new double[4];
+		private int taps;
+
+		/*..................................................................*/
+		private AffineWarper (
+			final int width,
+			final int height,
+			final double[][] matrix,
+			final int interpolation
+		) {
+			this.width = width;
+			this.height = height;
+			this.matrix = matrix;
+			this.interpolation = interpolation;
+		}
+
+		/*..................................................................*/
+		/* Nearest neighbor and linear interpolation sample the plane itself;
+			only cubic interpolation needs a float plane of coefficients. */
+		static ImageProcessor warp (
+			final ImageProcessor ip,
+			final double[][] matrix,
+			final int interpolation
+		) {
+			final int width = ip.getWidth();
+			final int height = ip.getHeight();
+			if (ip instanceof ColorProcessor) {
+				return(new ColorProcessor(width, height,
+					warpRGB((int[])ip.getPixels(), width, height, matrix, interpolation)));
+			}
+			final AffineWarper warper = new AffineWarper(width, height, matrix, interpolation);
+			final float[] c = (interpolation == CUBIC) ? warper.getCoefficients(ip.getPixels(), -1) : null;
+			if (ip instanceof ByteProcessor) {
+				final byte[] p = (byte[])ip.getPixels();
+				final byte[] pixels = new byte[width * height];
+				for (int y = 0, k = 0; (y < height); y++) {
+					for (int x = 0; (x < width); x++, k++) {
+						if (warper.setPosition(x, y)) {
+							pixels[k] = (byte)clamp((c == null) ? warper.interpolate(p) : warper.interpolate(c), 255.0);
+						}
+					}
+				}
+				return(new ByteProcessor(width, height, pixels, ip.getColorModel()));
+			}
+			if (ip instanceof ShortProcessor) {
+				final short[] p = (short[])ip.getPixels();
+				final short[] pixels = new short[width * height];
+				for (int y = 0, k = 0; (y < height); y++) {
+					for (int x = 0; (x < width); x++, k++) {
+						if (warper.setPosition(x, y)) {
+							pixels[k] = (short)clamp((c == null) ? warper.interpolate(p) : warper.interpolate(c), 65535.0);
+						}
+					}
+				}
+				return(new ShortProcessor(width, height, pixels, ip.getColorModel()));
+			}
+			final float[] p = (c == null) ? (float[])ip.getPixels() : c;
+			final float[] pixels = new float[width * height];
+			for (int y = 0, k = 0; (y < height); y++) {
+				for (int x = 0; (x < width); x++, k++) {
+					if (warper.setPosition(x, y)) {
+						pixels[k] = (float)warper.interpolate(p);
+					}
+				}
+			}
+			return(new FloatProcessor(width, height, pixels, ip.getColorModel()));
+		}
+
+		/*..................................................................*/
+		static int[] warpRGB (
+			final int[] rgb,
+			final int width,
+			final int height,
+			final double[][] matrix,
+			final int interpolation
+		) {
+			final AffineWarper warper = new AffineWarper(width, height, matrix, interpolation);
+			final int[] pixels = new int[width * height];
+			if (interpolation != CUBIC) {
+				for (int y = 0, k = 0; (y < height); y++) {
+					for (int x = 0; (x < width); x++, k++) {
+						if (!warper.setPosition(x, y)) {
+							pixels[k] = 0xFF000000;
+							continue;
+						}
+						pixels[k] = 0xFF000000 | (clamp(warper.interpolate(rgb, 16), 255.0) << 16)
+							| (clamp(warper.interpolate(rgb, 8), 255.0) << 8) | clamp(warper.interpolate(rgb, 0), 255.0);
+					}
+				}
+				return(pixels);
+			}
+			final float[] r = warper.getCoefficients(rgb, 16);
+			final float[] g = warper.getCoefficients(rgb, 8);
+			final float[] b = warper.getCoefficients(rgb, 0);
+			for (int y = 0, k = 0; (y < height); y++) {
+				for (int x = 0; (x < width); x++, k++) {
+					if (!warper.setPosition(x, y)) {
+						pixels[k] = 0xFF000000;
+						continue;
+					}
+					pixels[k] = 0xFF000000 | (clamp(warper.interpolate(r), 255.0) << 16)
+						| (clamp(warper.interpolate(g), 255.0) << 8) | clamp(warper.interpolate(b), 255.0);
+				}
+			}
+			return(pixels);
+		}
+
+		/*..................................................................*/
+		/* Cubic B-spline coefficients of a plane, as floats. shift picks a
+			component of RGB pixels. */
+		private float[] getCoefficients (
+			final Object pixels,
+			final int shift
+		) {
+			final int length = width * height;
+			final float[] c = new float[length];
+			if (pixels instanceof byte[]) {
+				final byte[] p = (byte[])pixels;
+				for (int k = 0; (k < length); k++) {
+					c[k] = (float)(p[k] & 0xFF);
+				}
+			}
+			else if (pixels instanceof short[]) {
+				final short[] p = (short[])pixels;
+				for (int k = 0; (k < length); k++) {
+					c[k] = (float)(p[k] & 0xFFFF);
+				}
+			}
+			else if (pixels instanceof int[]) {
+				final int[] p = (int[])pixels;
+				for (int k = 0; (k < length); k++) {
+					c[k] = (float)((p[k] >> shift) & 0xFF);
+				}
+			}
+			else {
+				System.arraycopy((float[])pixels, 0, c, 0, length);
+			}
+			getBasicFromCardinal2D(c, width, height);
+			return(c);
+		}
+
+		/*..................................................................*/
+		/* Maps output pixel (x, y) into the input and sets the indices and
+			weights of the samples around it; false if it falls outside. */
+		private boolean setPosition (
+			final int x,
+			final int y
+		) {
+			final double xs = matrix[0][0] * x + matrix[0][1] * y + matrix[0][2];
+			final double ys = matrix[1][0] * x + matrix[1][1] * y + matrix[1][2];
+			if ((xs < -EDGE) || (width - 1 + EDGE < xs) || (ys < -EDGE) || (height - 1 + EDGE < ys)) {
+				return(false);
+			}
+			switch (interpolation) {
+				case NEAREST: {
+					taps = 1;
+					ix[0] = mirror((int)Math.floor(xs + 0.5), width);
+					iy[0] = mirror((int)Math.floor(ys + 0.5), height) * width;
+					wx[0] = 1.0;
+					wy[0] = 1.0;
+					break;
+				}
+				case LINEAR: {
+					taps = 2;
+					final int i = (int)Math.floor(xs);
+					final int j = (int)Math.floor(ys);
+					ix[0] = mirror(i, width);
+					ix[1] = mirror(i + 1, width);
+					iy[0] = mirror(j, height) * width;
+					iy[1] = mirror(j + 1, height) * width;
+					wx[1] = xs - i;
+					wx[0] = 1.0 - wx[1];
+					wy[1] = ys - j;
+					wy[0] = 1.0 - wy[1];
+					break;
+				}
+				default: {
+					taps = 4;
+					final int i = (int)Math.floor(xs);
+					final int j = (int)Math.floor(ys);
+					for (int n = 0; (n < 4); n++) {
+						ix[n] = mirror(i - 1 + n, width);
+						iy[n] = mirror(j - 1 + n, height) * width;
+					}
+					setCubicWeights(wx, xs - i);
+					setCubicWeights(wy, ys - j);
+					break;
+				}
+			}
+			return(true);
+		}
+
+		/*..................................................................*/
+		private double interpolate (
+			final float[] c
+		) {
+			double value = 0.0;
+			for (int m = 0; (m < taps); m++) {
+				double line = 0.0;
+				for (int n = 0; (n < taps); n++) {
+					line += wx[n] * c[iy[m] + ix[n]];
+				}
+				value += wy[m] * line;
+			}
+			return(value);
+		}
+
+		/*..................................................................*/
+		private double interpolate (
+			final byte[] p
+		) {
+			double value = 0.0;
+			for (int m = 0; (m < taps); m++) {
+				double line = 0.0;
+				for (int n = 0; (n < taps); n++) {
+					line += wx[n] * (p[iy[m] + ix[n]] & 0xFF);
+				}
+				value += wy[m] * line;
+			}
+			return(value);
+		}
+
+		/*..................................................................*/
+		private double interpolate (
+			final short[] p
+		) {
+			double value = 0.0;
+			for (int m = 0; (m < taps); m++) {
+				double line = 0.0;
+				for (int n = 0; (n < taps); n++) {
+					line += wx[n] * (p[iy[m] + ix[n]] & 0xFFFF);
+				}
+				value += wy[m] * line;
+			}
+			return(value);
+		}
+
+		/*..................................................................*/
+		private double interpolate (
+			final int[] p,
+			final int shift
+		) {
+			double value = 0.0;
+			for (int m = 0; (m < taps); m++) {
+				double line = 0.0;
+				for (int n = 0; (n < taps); n++) {
+					line += wx[n] * ((p[iy[m] + ix[n]] >> shift) & 0xFF);
+				}
+				value += wy[m] * line;
+			}
+			return(value);
+		}
+
+		/*..................................................................*/
+		static int clamp (
+			final double value,
+			final double max
+		) {
+			return((int)Math.floor(Math.min(Math.max(value, 0.0), max) + 0.5));
+		}
+
+		/*..................................................................*/
+		static int mirror (
+			int i,
+			final int n
+		) {
+			if (n == 1) {
+				return(0);
+			}
+			final int period = 2 * n - 2;
+			i = Math.abs(i) % period;
+			return((i < n) ? (i) : (period - i));
+		}
+
+		/*..................................................................*/
+		static void setCubicWeights (
+			final double[] w,
+			final double t
+		) {
+			final double s = 1.0 - t;
+			w[0] = s * s * s / 6.0;
+			w[1] = 2.0 / 3.0 - t * t + 0.5 * t * t * t;
+			w[2] = 2.0 / 3.0 - s * s + 0.5 * s * s * s;
+			w[3] = t * t * t / 6.0;
+		}
+
+		/*..................................................................*/
+		/* In-place conversion of samples to cubic B-spline coefficients,
+			row by row, then column by column. */
+		static void getBasicFromCardinal2D (
+			final float[] c,
+			final int width,
+			final int height
+		) {
+			final double[] row = new double[width];
+			for (int y = 0; (y < height); y++) {
+				for (int x = 0; (x < width); x++) {
+					row[x] = c[y * width + x];
+				}
+				getBasicFromCardinal1D(row);
+				for (int x = 0; (x < width); x++) {
+					c[y * width + x] = (float)row[x];
+				}
+			}
+			final double[] column = new double[height];
+			for (int x = 0; (x < width); x++) {
+				for (int y = 0; (y < height); y++) {
+					column[y] = c[y * width + x];
+				}
+				getBasicFromCardinal1D(column);
+				for (int y = 0; (y < height); y++) {
+					c[y * width + x] = (float)column[y];
+				}
+			}
+		}
+
+		/*..................................................................*/
+		static void getBasicFromCardinal1D (
+			final double[] c
+		) {
+			final int n = c.length;
+			if (n == 1) {
+				return;
+			}
+			final double z = POLE;
+			final double lambda = (1.0 - z) * (1.0 - 1.0 / z);
+			for (int k = 0; (k < n); k++) {
+				c[k] *= lambda;
+			}
+			final int horizon = Math.min(n, 2 + (int)Math.ceil(Math.log(TINY) / Math.log(Math.abs(z))));
+			double zk = z;
+			double sum = c[0];
+			for (int k = 1; (k < horizon); k++) {
+				sum += zk * c[k];
+				zk *= z;
+			}
+			c[0] = sum;
+			for (int k = 1; (k < n); k++) {
+				c[k] += z * c[k - 1];
+			}
+			c[n - 1] = (z / (z * z - 1.0)) * (z * c[n - 2] + c[n - 1]);
+			for (int k = n - 2; (0 <= k); k--) {
+				c[k] = z * (c[k + 1] - c[k]);
+			}
+		}
+	} /* end class AffineWarper */
+
+/*------------------------------------------------------------------*/
+/* Inverse of the color table of an indexed-color stack: the index that
+	IndexColorModel.getDataElement gives for an RGB value, remembered so
+	that every color is searched for only once. Shared by all threads. The
+	table has one entry per RGB value, 0 until it is known and the index
+	plus 256 afterwards; a short is written at once, so a thread sees
+	either nothing or the whole entry and at worst searches again. */
+	private static class InverseLut {
+		private final IndexColorModel icm;
+		private final short[] table = new short[1 << 24];
+
+		InverseLut (
+			final IndexColorModel icm
+		) {
+			this.icm = icm;
+		}
+
+		/*..................................................................*/
+		byte getIndex (
+			final int rgb
+		) {
+			final int key = rgb & 0xFFFFFF;
+			int entry = table[key];
+			if (entry == 0) {
+				final int[] color = {(rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF, 255};
+				entry = 256 + (icm.getDataElement(color, 0) & 0xFF);
+				table[key] = (short)entry;
+			}
+			return((byte)entry);
+		}
+	} /* end class InverseLut */
+
+/*------------------------------------------------------------------*/
+/* Estimates the transformation that brings a source frame onto a target
+	frame of the same size, starting from the transform matrix guess (target
+	to source pixel coordinates), or from the identity if guess is null. On
+	success, targetPoints holds anchorPoints and sourcePoints the places
+	where they land in the source, as TurboReg returns them from -align.
+	getIterations tells how many iterations the last align took, or 0 if
+	the aligner cannot tell. */
+	private interface Aligner {
+		boolean align (ImagePlus source, ImagePlus target, int transformation,
+			double[][] anchorPoints, double[][] guess, double[][] sourcePoints, double[][] targetPoints);
+		int getIterations ();
+	} /* end interface Aligner */
+
+/*------------------------------------------------------------------*/
+/* Aligner that runs TurboReg -align and reads its landmarks back. */
+	private class TurboRegAligner implements Aligner {
+		public boolean align (
+			final ImagePlus source,
+			final ImagePlus target,
+			final int transformation,
+			final double[][] anchorPoints,
+			final double[][] guess,
+			final double[][] sourcePoints,
+			final double[][] targetPoints
+		) {
+			final int width = target.getWidth();
+			final int height = target.getHeight();
+			String sourceImage = null;
+			try {
+				sourceImage = shareWithTurboReg(source);
+				String targetImage = null;
+				Object turboReg = null;
+				try {
+					targetImage = shareWithTurboReg(target);
+					turboReg = IJ.runPlugIn("TurboReg_", "-align"
+						+ sourceImage + " 0 0 " + (width - 1) + " " + (height - 1)
+						+ targetImage + " 0 0 " + (width - 1) + " " + (height - 1)
+						+ getTurboRegLandmarks(transformation,
+							(guess == null) ? anchorPoints : transformPoints(guess, anchorPoints), anchorPoints)
+						+ " -hideOutput"
+					);
+				} finally {
+					if (targetImage != null)
+						releaseFromTurboReg(target);
+				}
+				if (turboReg == null) {
+					throw(new ClassNotFoundException());
+				}
+				Method method = turboReg.getClass().getMethod("getSourcePoints",	(Class[])null);
+				copyPoints((double[][])method.invoke(turboReg), sourcePoints);
+				method = turboReg.getClass().getMethod("getTargetPoints", (Class[])null);
+				copyPoints((double[][])method.invoke(turboReg), targetPoints);
+			} catch (NoSuchMethodException e) {
+				IJ.error("Unexpected NoSuchMethodException " + e);
+				return(false);
+			} catch (IllegalAccessException e) {
+				IJ.error("Unexpected IllegalAccessException " + e);
+				return(false);
+			} catch (InvocationTargetException e) {
+				IJ.error("Unexpected InvocationTargetException " + e);
+				return(false);
+			} catch (ClassNotFoundException e) {
+				IJ.error("Please download TurboReg_ from\n"
+					+ "http://bigwww.epfl.ch/thevenaz/turboreg/\n"
+					+ "or choose the Built-in registration");
+				return(false);
+			} finally {
+				if (sourceImage != null)
+					releaseFromTurboReg(source);
+			}
+			return(true);
+		}
+
+		/*..................................................................*/
+		public int getIterations (
+		) {
+			return(0);
+		}
+
+		/*..................................................................*/
+		private void copyPoints (
+			final double[][] from,
+			final double[][] to
+		) {
+			for (int i = 0; (i < Math.min(from.length, to.length)); i++) {
+				to[i][0] = from[i][0];
+				to[i][1] = from[i][1];
+			}
+		}
+	} /* end class TurboRegAligner */
+
+/*------------------------------------------------------------------*/
+/* Aligner that needs no plugin: intensity-based Gauss-Newton least squares
+	on a pyramid of 2x2 averages, coarse to fine, for the four models. The
+	model is written about the image center, x_s = A (x - c) + c + t, so that
+	A is the same on every level and t doubles from one level to the next.
+	Samples of the source are taken by bilinear interpolation, only where
+	the transformed target pixel falls inside the source. */
+	private static class PyramidAligner implements Aligner {
+		private static final int MIN_SIZE = 32;
+		private static final int MAX_ITERATIONS = 64;
+		private static final double PRECISION = 1.0E-3;
+		private final Workspace workspace;
+		private int iterations;
+
+		PyramidAligner (
+			final Workspace workspace
+		) {
+			this.workspace = workspace;
+		}
+
+		/*..................................................................*/
+		public boolean align (
+			final ImagePlus source,
+			final ImagePlus target,
+			final int transformation,
+			final double[][] anchorPoints,
+			final double[][] guess,
+			final double[][] sourcePoints,
+			final double[][] targetPoints
+		) {
+			final int width = target.getWidth();
+			final int height = target.getHeight();
+			// in a chain the target is the source of the last call, whose pyramid is still there
+			final float[][] targetPyramid = workspace.isLastSource(target.getProcessor().getPixels())
+				? workspace.swapPyramids() : workspace.getPyramid(Workspace.TARGET, target.getProcessor(), width, height);
+			final float[][] sourcePyramid = workspace.getPyramid(Workspace.SOURCE, source.getProcessor(), width, height);
+			workspace.setLastSource(source.getProcessor().getPixels());
+			final double[] q = (guess == null) ? getIdentity(transformation) : getParameters(guess, transformation, width, height);
+			q[q.length - 2] /= (double)(1 << (targetPyramid.length - 1));
+			q[q.length - 1] /= (double)(1 << (targetPyramid.length - 1));
+			iterations = 0;
+			for (int level = targetPyramid.length - 1; (0 <= level); level--) {
+				if (level < targetPyramid.length - 1) {
+					q[q.length - 2] *= 2.0;
+					q[q.length - 1] *= 2.0;
+				}
+				final int w = width >> level;
+				final int h = height >> level;
+				final float[][] gradient = workspace.getGradient(level, w * h);
+				getGradient(sourcePyramid[level], w, h, gradient);
+				for (int iteration = 0; (iteration < MAX_ITERATIONS); iteration++) {
+					iterations++;
+					if (!improve(q, transformation, targetPyramid[level], sourcePyramid[level], gradient, w, h)) {
+						break;
+					}
+				}
+			}
+			final double[][] matrix = getMatrix(q, transformation, width, height);
+			for (int i = 0; (i < Math.min(anchorPoints.length, sourcePoints.length)); i++) {
+				targetPoints[i][0] = anchorPoints[i][0];
+				targetPoints[i][1] = anchorPoints[i][1];
+				sourcePoints[i][0] = matrix[0][0] * anchorPoints[i][0] + matrix[0][1] * anchorPoints[i][1] + matrix[0][2];
+				sourcePoints[i][1] = matrix[1][0] * anchorPoints[i][0] + matrix[1][1] * anchorPoints[i][1] + matrix[1][2];
+			}
+			return(true);
+		}
+
+		/*..................................................................*/
+		public int getIterations (
+		) {
+			return(iterations);
+		}
+
+		/*..................................................................*/
+		/* Parameters of the identity: (tx, ty), (angle, tx, ty),
+			(a, b, tx, ty) or (a00, a01, a10, a11, tx, ty). */
+		static double[] getIdentity (
+			final int transformation
+		) {
+			switch (transformation) {
+				case 0: {
+					return(new double[] {0.0, 0.0});
+				}
+				case 1: {
+					return(new double[] {0.0, 0.0, 0.0});
+				}
+				case 2: {
+					return(new double[] {1.0, 0.0, 0.0, 0.0});
+				}
+				default: {
+					return(new double[] {1.0, 0.0, 0.0, 1.0, 0.0, 0.0});
+				}
+			}
+		}
+
+		/*..................................................................*/
+		/* The 2x2 linear part of the model, {a00, a01, a10, a11}. */
+		static double[] getLinearPart (
+			final double[] q,
+			final int transformation
+		) {
+			switch (transformation) {
+				case 0: {
+					return(new double[] {1.0, 0.0, 0.0, 1.0});
+				}
+				case 1: {
+					final double c = Math.cos(q[0]);
+					final double s = Math.sin(q[0]);
+					return(new double[] {c, -s, s, c});
+				}
+				case 2: {
+					return(new double[] {q[0], -q[1], q[1], q[0]});
+				}
+				default: {
+					return(new double[] {q[0], q[1], q[2], q[3]});
+				}
+			}
+		}
+
+		/*..................................................................*/
+		/* Parameters of the model closest to a matrix in pixel coordinates
+			of a width x height image; the inverse of getMatrix. */
+		static double[] getParameters (
+			final double[][] matrix,
+			final int transformation,
+			final int width,
+			final int height
+		) {
+			final double cx = 0.5 * (width - 1);
+			final double cy = 0.5 * (height - 1);
+			final double tx = matrix[0][0] * cx + matrix[0][1] * cy + matrix[0][2] - cx;
+			final double ty = matrix[1][0] * cx + matrix[1][1] * cy + matrix[1][2] - cy;
+			switch (transformation) {
+				case 0: {
+					return(new double[] {tx, ty});
+				}
+				case 1: {
+					return(new double[] {Math.atan2(matrix[1][0], matrix[0][0]), tx, ty});
+				}
+				case 2: {
+					return(new double[] {matrix[0][0], matrix[1][0], tx, ty});
+				}
+				default: {
+					return(new double[] {matrix[0][0], matrix[0][1], matrix[1][0], matrix[1][1], tx, ty});
+				}
+			}
+		}
+
+		/*..................................................................*/
+		/* The model in pixel coordinates of a width x height image. */
+		static double[][] getMatrix (
+			final double[] q,
+			final int transformation,
+			final int width,
+			final int height
+		) {
+			final double[] a = getLinearPart(q, transformation);
+			final double cx = 0.5 * (width - 1);
+			final double cy = 0.5 * (height - 1);
+			final double tx = q[q.length - 2];
+			final double ty = q[q.length - 1];
+			return(new double[][] {
+				{a[0], a[1], cx + tx - a[0] * cx - a[1] * cy},
+				{a[2], a[3], cy + ty - a[2] * cx - a[3] * cy},
+				{0.0, 0.0, 1.0}
+			});
+		}
+
+		/*..................................................................*/
+		/* One Gauss-Newton step, halved until the mean squared difference
+			goes down. Returns false once the step moves no pixel of the
+			image by more than PRECISION, or no better step is found. */
+		private boolean improve (
+			final double[] q,
+			final int transformation,
+			final float[] target,
+			final float[] source,
+			final float[][] gradient,
+			final int width,
+			final int height
+		) {
+			final int n = q.length;
+			final double[][] hessian = workspace.getHessian(n);
+			final double[] g = workspace.getStep(Workspace.ERROR_GRADIENT, n);
+			final double[] j = workspace.getStep(Workspace.JACOBIAN, n);
+			final double[] a = getLinearPart(q, transformation);
+			final double cx = 0.5 * (width - 1);
+			final double cy = 0.5 * (height - 1);
+			final double tx = q[n - 2];
+			final double ty = q[n - 1];
+			double error = 0.0;
+			int count = 0;
+			for (int y = 0; (y < height); y++) {
+				final double uy = y - cy;
+				for (int x = 0; (x < width); x++) {
+					final double ux = x - cx;
+					final double xs = a[0] * ux + a[1] * uy + cx + tx;
+					final double ys = a[2] * ux + a[3] * uy + cy + ty;
+					if ((xs < 0.0) || (width - 1 < xs) || (ys < 0.0) || (height - 1 < ys)) {
+						continue;
+					}
+					final double r = sample(source, width, height, xs, ys) - target[y * width + x];
+					final double sx = sample(gradient[0], width, height, xs, ys);
+					final double sy = sample(gradient[1], width, height, xs, ys);
+					switch (transformation) {
+						case 0: {
+							break;
+						}
+						case 1: {
+							j[0] = sx * (-a[2] * ux - a[0] * uy) + sy * (a[0] * ux - a[2] * uy);
+							break;
+						}
+						case 2: {
+							j[0] = sx * ux + sy * uy;
+							j[1] = -sx * uy + sy * ux;
+							break;
+						}
+						default: {
+							j[0] = sx * ux;
+							j[1] = sx * uy;
+							j[2] = sy * ux;
+							j[3] = sy * uy;
+							break;
+						}
+					}
+					j[n - 2] = sx;
+					j[n - 1] = sy;
+					for (int k = 0; (k < n); k++) {
+						g[k] += j[k] * r;
+						for (int l = 0; (l <= k); l++) {
+							hessian[k][l] += j[k] * j[l];
+						}
+					}
+					error += r * r;
+					count++;
+				}
+			}
+			if (count <= n) {
+				return(false);
+			}
+			for (int k = 0; (k < n); k++) {
+				for (int l = k + 1; (l < n); l++) {
+					hessian[k][l] = hessian[l][k];
+				}
+			}
+			final double[] step = solve(hessian, g);
+			if (step == null) {
+				return(false);
+			}
+			error /= count;
+			final double[] trial = workspace.getStep(Workspace.TRIAL, n);
+			for (double scale = 1.0; (scale > 1.0 / 64.0); scale *= 0.5) {
+				for (int k = 0; (k < n); k++) {
+					trial[k] = q[k] - scale * step[k];
+				}
+				if (getMeanSquaredError(trial, transformation, target, source, width, height) < error) {
+					final double displacement = getDisplacement(q, trial, transformation, width, height);
+					System.arraycopy(trial, 0, q, 0, n);
+					return(PRECISION < displacement);
+				}
+			}
+			return(false);
+		}
+
+		/*..................................................................*/
+		private double getMeanSquaredError (
+			final double[] q,
+			final int transformation,
+			final float[] target,
+			final float[] source,
+			final int width,
+			final int height
+		) {
+			final double[][] m = getMatrix(q, transformation, width, height);
+			double error = 0.0;
+			int count = 0;
+			for (int y = 0; (y < height); y++) {
+				for (int x = 0; (x < width); x++) {
+					final double xs = m[0][0] * x + m[0][1] * y + m[0][2];
+					final double ys = m[1][0] * x + m[1][1] * y + m[1][2];
+					if ((xs < 0.0) || (width - 1 < xs) || (ys < 0.0) || (height - 1 < ys)) {
+						continue;
+					}
+					final double r = sample(source, width, height, xs, ys) - target[y * width + x];
+					error += r * r;
+					count++;
+				}
+			}
+			return((count == 0) ? (Double.MAX_VALUE) : (error / count));
+		}
+
+		/*..................................................................*/
+		/* Largest move of an image corner between two sets of parameters. */
+		static double getDisplacement (
+			final double[] q0,
+			final double[] q1,
+			final int transformation,
+			final int width,
+			final int height
+		) {
+			final double[][] m0 = getMatrix(q0, transformation, width, height);
+			final double[][] m1 = getMatrix(q1, transformation, width, height);
+			double displacement = 0.0;
+			for (int corner = 0; (corner < 4); corner++) {
+				final double x = ((corner & 1) == 0) ? (0.0) : (width - 1);
+				final double y = ((corner & 2) == 0) ? (0.0) : (height - 1);
+				final double dx = (m1[0][0] - m0[0][0]) * x + (m1[0][1] - m0[0][1]) * y + (m1[0][2] - m0[0][2]);
+				final double dy = (m1[1][0] - m0[1][0]) * x + (m1[1][1] - m0[1][1]) * y + (m1[1][2] - m0[1][2]);
+				displacement = Math.max(displacement, Math.sqrt(dx * dx + dy * dy));
+			}
+			return(displacement);
+		}
+
+		/*..................................................................*/
+		/* Solution of the small symmetric system a x = b by Gaussian
+			elimination with partial pivoting; null if a is singular. */
+		static double[] solve (
+			final double[][] a,
+			final double[] b
+		) {
+			final int n = b.length;
+			final double[][] m = new double[n][n + 1];
+			for (int i = 0; (i < n); i++) {
+				System.arraycopy(a[i], 0, m[i], 0, n);
+				m[i][n] = b[i];
+			}
+			for (int i = 0; (i < n); i++) {
+				int pivot = i;
+				for (int k = i + 1; (k < n); k++) {
+					if (Math.abs(m[pivot][i]) < Math.abs(m[k][i])) {
+						pivot = k;
+					}
+				}
+				final double[] swap = m[i];
+				m[i] = m[pivot];
+				m[pivot] = swap;
+				if (Math.abs(m[i][i]) < TINY) {
+					return(null);
+				}
+				for (int k = i + 1; (k < n); k++) {
+					final double f = m[k][i] / m[i][i];
+					for (int l = i; (l <= n); l++) {
+						m[k][l] -= f * m[i][l];
+					}
+				}
+			}
+			final double[] x = new double[n];
+			for (int i = n - 1; (0 <= i); i--) {
+				double sum = m[i][n];
+				for (int k = i + 1; (k < n); k++) {
+					sum -= m[i][k] * x[k];
+				}
+				x[i] = sum / m[i][i];
+			}
+			return(x);
+		}
+
+		/*..................................................................*/
+		/* Number of levels of the pyramid of a width x height image: down to
+			MIN_SIZE pixels along the shorter side. */
+		static int getLevels (
+			final int width,
+			final int height
+		) {
+			int levels = 1;
+			while ((MIN_SIZE <= (width >> levels)) && (MIN_SIZE <= (height >> levels))) {
+				levels++;
+			}
+			return(levels);
+		}
+
+		/*..................................................................*/
+		/* Level 0 is the image itself; every next level averages 2x2 blocks
+			of the level before it. */
+		static void fillPyramid (
+			final float[][] pyramid,
+			final int width,
+			final int height
+		) {
+			for (int level = 1; (level < pyramid.length); level++) {
+				final int w0 = width >> (level - 1);
+				final int w = width >> level;
+				final int h = height >> level;
+				final float[] fine = pyramid[level - 1];
+				final float[] coarse = pyramid[level];
+				for (int y = 0; (y < h); y++) {
+					for (int x = 0; (x < w); x++) {
+						final int k = 2 * y * w0 + 2 * x;
+						coarse[y * w + x] = 0.25F * (fine[k] + fine[k + 1] + fine[k + w0] + fine[k + w0 + 1]);
+					}
+				}
+			}
+		}
+
+		/*..................................................................*/
+		/* Central differences, one-sided at the borders. */
+		static void getGradient (
+			final float[] image,
+			final int width,
+			final int height,
+			final float[][] gradient
+		) {
+			for (int y = 0; (y < height); y++) {
+				final int y0 = Math.max(y - 1, 0);
+				final int y1 = Math.min(y + 1, height - 1);
+				for (int x = 0; (x < width); x++) {
+					final int x0 = Math.max(x - 1, 0);
+					final int x1 = Math.min(x + 1, width - 1);
+					gradient[0][y * width + x] = (x1 == x0) ? (0.0F)
+						: ((image[y * width + x1] - image[y * width + x0]) / (x1 - x0));
+					gradient[1][y * width + x] = (y1 == y0) ? (0.0F)
+						: ((image[y1 * width + x] - image[y0 * width + x]) / (y1 - y0));
+				}
+			}
+		}
+
+		/*..................................................................*/
+		/* Bilinear sample at (x, y), which lies inside the image. */
+		static double sample (
+			final float[] image,
+			final int width,
+			final int height,
+			final double x,
+			final double y
+		) {
+			final int i = Math.min((int)x, width - 2);
+			final int j = Math.min((int)y, height - 2);
+			if ((i < 0) || (j < 0)) {
+				return(image[Math.max(j, 0) * width + Math.max(i, 0)]);
+			}
+			final double tx = x - i;
+			final double ty = y - j;
+			final int k = j * width + i;
+			return((1.0 - ty) * ((1.0 - tx) * image[k] + tx * image[k + 1])
+				+ ty * ((1.0 - tx) * image[k + width] + tx * image[k + width + 1]));
+		}
+	} /* end class PyramidAligner */
+
+/*------------------------------------------------------------------*/
+/* Aligner for translations only: the shift is the peak of the phase
+	correlation of the two frames. Frames are Hann-windowed and zero-padded
+	to powers of two; the cross-power spectrum is only half whitened
+	(divided by the square root of its magnitude), since full whitening
+	lets the peak of the common window at 0 win over small shifts. The
+	correlation is the inverse DFT of that spectrum, so it is known between
+	its samples too; the subpixel peak is found there by Newton's method,
+	started from a parabola through the whole-pixel peak and its neighbors.
+	Once the whole-pixel shift is known, the source is moved by it and
+	correlated again for the subpixel part. Every frame of a chain is
+	registered onto the target frame, so the FFT of the target is computed
+	once per chain and errors do not add up from frame to frame. The
+	spectra and the lines of the FFTs are kept in the workspace. */
+	private static class PhaseCorrelationAligner implements Aligner {
+		private static final int NEWTON_ITERATIONS = 10;
+		private final Workspace workspace;
+		private Object targetPixels = null;
+		private int fftWidth, fftHeight;
+		private double[] windowX, windowY;
+
+		PhaseCorrelationAligner (
+			final Workspace workspace
+		) {
+			this.workspace = workspace;
+		}
+
+		/*..................................................................*/
+		public boolean align (
+			final ImagePlus source,
+			final ImagePlus target,
+			final int transformation,
+			final double[][] anchorPoints,
+			final double[][] guess,
+			final double[][] sourcePoints,
+			final double[][] targetPoints
+		) {
+			// the whole correlation surface is searched, so a guess is of no use
+			if (transformation != 0) {
+				IJ.error("Phase correlation estimates translations only");
+				return(false);
+			}
+			final int width = target.getWidth();
+			final int height = target.getHeight();
+			if ((windowX == null) || (windowX.length != width) || (windowY.length != height)) {
+				fftWidth = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+				fftHeight = Integer.highestOneBit(Math.max(height - 1, 1)) << 1;
+				windowX = getHannWindow(width);
+				windowY = getHannWindow(height);
+				targetPixels = null;
+			}
+			final int n = fftWidth * fftHeight;
+			final double[][] targetSpectrum = workspace.getFourier(Workspace.TARGET, n);
+			final double[][] sourceSpectrum = workspace.getFourier(Workspace.SOURCE, n);
+			if (target.getProcessor().getPixels() != targetPixels) {
+				targetPixels = target.getProcessor().getPixels();
+				getSpectrum(target.getProcessor(), width, height, 0, 0, targetSpectrum);
+			}
+			getSpectrum(source.getProcessor(), width, height, 0, 0, sourceSpectrum);
+			final double[] shift = getPeak(sourceSpectrum, targetSpectrum);
+			final int ox = (int)Math.round(shift[0]);
+			final int oy = (int)Math.round(shift[1]);
+			double dx = shift[0];
+			double dy = shift[1];
+			if ((ox != 0) || (oy != 0)) {
+				// the common window pulls the peak toward 0; measure again what is left once the source is moved by the whole pixels
+				getSpectrum(source.getProcessor(), width, height, ox, oy, sourceSpectrum);
+				final double[] residual = getPeak(sourceSpectrum, targetSpectrum);
+				dx = ox + residual[0];
+				dy = oy + residual[1];
+			}
+			targetPoints[0][0] = anchorPoints[0][0];
+			targetPoints[0][1] = anchorPoints[0][1];
+			sourcePoints[0][0] = anchorPoints[0][0] + dx;
+			sourcePoints[0][1] = anchorPoints[0][1] + dy;
+			return(true);
+		}
+
+		/*..................................................................*/
+		public int getIterations (
+		) {
+			return(0);
+		}
+
+		/*..................................................................*/
+		/* Position of the correlation peak, as the shift of the source. */
+		private double[] getPeak (
+			final double[][] sourceSpectrum,
+			final double[][] targetSpectrum
+		) {
+			final int n = fftWidth * fftHeight;
+			final double[][] cross = workspace.getFourier(Workspace.CROSS, n);
+			final double[] crossRe = cross[0];
+			final double[] crossIm = cross[1];
+			for (int k = 0; (k < n); k++) {
+				// source times the conjugate of the target, divided by the square root of its magnitude
+				final double r = sourceSpectrum[0][k] * targetSpectrum[0][k] + sourceSpectrum[1][k] * targetSpectrum[1][k];
+				final double i = sourceSpectrum[1][k] * targetSpectrum[0][k] - sourceSpectrum[0][k] * targetSpectrum[1][k];
+				final double magnitude = Math.sqrt(r * r + i * i);
+				final double norm = (TINY < magnitude) ? (Math.sqrt(magnitude)) : (Double.POSITIVE_INFINITY);
+				crossRe[k] = r / norm;
+				crossIm[k] = i / norm;
+			}
+			final double[][] correlation = workspace.getFourier(Workspace.CORRELATION, n);
+			final double[] re = correlation[0];
+			final double[] im = correlation[1];
+			System.arraycopy(crossRe, 0, re, 0, n);
+			System.arraycopy(crossIm, 0, im, 0, n);
+			fft2D(re, im, fftWidth, fftHeight, true, workspace);
+			int peak = 0;
+			for (int k = 1; (k < n); k++) {
+				if (re[peak] < re[k]) {
+					peak = k;
+				}
+			}
+			final int px = peak % fftWidth;
+			final int py = peak / fftWidth;
+			final double x0 = ((fftWidth / 2 < px) ? (px - fftWidth) : (px)) + getParabolaOffset(
+				re[py * fftWidth + (px + fftWidth - 1) % fftWidth], re[peak], re[py * fftWidth + (px + 1) % fftWidth]);
+			final double y0 = ((fftHeight / 2 < py) ? (py - fftHeight) : (py)) + getParabolaOffset(
+				re[((py + fftHeight - 1) % fftHeight) * fftWidth + px], re[peak], re[((py + 1) % fftHeight) * fftWidth + px]);
+			return(refinePeak(crossRe, crossIm, x0, y0));
+		}
+
+		/*..................................................................*/
+		/* Maximum of the correlation near (x0, y0), by Newton's method on
+			the inverse DFT of the cross-power spectrum (re, im) evaluated at
+			any point. Unlike the parabola, which is biased toward the whole
+			pixel, it lands on the true maximum of the interpolated surface.
+			Returns (x0, y0) if that surface is not concave there. */
+		private double[] refinePeak (
+			final double[] re,
+			final double[] im,
+			final double x0,
+			final double y0
+		) {
+			// the FFT is done, so its row buffers hold the cosines and sines along x
+			final double[][] line = workspace.getFourier(Workspace.ROWS, fftWidth);
+			final double[] cosX = line[0];
+			final double[] sinX = line[1];
+			final double step = 2.0 * Math.PI / fftWidth;
+			double x = x0;
+			double y = y0;
+			for (int iteration = 0; (iteration < NEWTON_ITERATIONS); iteration++) {
+				for (int k = 0; (k < fftWidth); k++) {
+					cosX[k] = Math.cos(step * ((fftWidth / 2 <= k) ? (k - fftWidth) : (k)) * x);
+					sinX[k] = Math.sin(step * ((fftWidth / 2 <= k) ? (k - fftWidth) : (k)) * x);
+				}
+				// gradient and Hessian of the real part of sum(c e^(i(ax + by)))
+				double gx = 0.0;
+				double gy = 0.0;
+				double hxx = 0.0;
+				double hyy = 0.0;
+				double hxy = 0.0;
+				for (int v = 0; (v < fftHeight); v++) {
+					final double b = 2.0 * Math.PI * ((fftHeight / 2 <= v) ? (v - fftHeight) : (v)) / fftHeight;
+					final double cosY = Math.cos(b * y);
+					final double sinY = Math.sin(b * y);
+					double sumIm = 0.0;
+					double sumImA = 0.0;
+					double sumRe = 0.0;
+					double sumReA = 0.0;
+					double sumReAA = 0.0;
+					for (int u = 0, k = v * fftWidth; (u < fftWidth); u++, k++) {
+						final double eRe = cosX[u] * cosY - sinX[u] * sinY;
+						final double eIm = sinX[u] * cosY + cosX[u] * sinY;
+						final double pRe = re[k] * eRe - im[k] * eIm;
+						final double pIm = re[k] * eIm + im[k] * eRe;
+						final double a = step * ((fftWidth / 2 <= u) ? (u - fftWidth) : (u));
+						sumIm += pIm;
+						sumImA += a * pIm;
+						sumRe += pRe;
+						sumReA += a * pRe;
+						sumReAA += a * a * pRe;
+					}
+					gx -= sumImA;
+					gy -= b * sumIm;
+					hxx -= sumReAA;
+					hyy -= b * b * sumRe;
+					hxy -= b * sumReA;
+				}
+				final double determinant = hxx * hyy - hxy * hxy;
+				if ((0.0 <= hxx) || (determinant <= 0.0)) {
+					return(new double[] {x0, y0});
+				}
+				final double dx = Math.max(-0.5, Math.min(0.5, (hxy * gy - hyy * gx) / determinant));
+				final double dy = Math.max(-0.5, Math.min(0.5, (hxy * gx - hxx * gy) / determinant));
+				x += dx;
+				y += dy;
+				if ((Math.abs(dx) < 1.0E-4) && (Math.abs(dy) < 1.0E-4)) {
+					break;
+				}
+			}
+			if ((1.0 < Math.abs(x - x0)) || (1.0 < Math.abs(y - y0))) {
+				return(new double[] {x0, y0});
+			}
+			return(new double[] {x, y});
+		}
+
+		/*..................................................................*/
+		/* Vertex of the parabola through (-1, a), (0, b), (1, c). */
+		static double getParabolaOffset (
+			final double a,
+			final double b,
+			final double c
+		) {
+			final double d = a - 2.0 * b + c;
+			if (-TINY < d) {
+				return(0.0);
+			}
+			return(Math.max(-0.5, Math.min(0.5, 0.5 * (a - c) / d)));
+		}
+
+		/*..................................................................*/
+		static double[] getHannWindow (
+			final int n
+		) {
+			final double[] window = new double[n];
+			for (int k = 0; (k < n); k++) {
+				window[k] = (n == 1) ? (1.0) : (0.5 - 0.5 * Math.cos(2.0 * Math.PI * k / (n - 1)));
+			}
+			return(window);
+		}
+
+		/*..................................................................*/
+		/* FFT of the frame moved by (-ox, -oy), less its mean, windowed and
+			zero-padded, into spectrum. */
+		private void getSpectrum (
+			final ImageProcessor ip,
+			final int width,
+			final int height,
+			final int ox,
+			final int oy,
+			final double[][] spectrum
+		) {
+			final int length = width * height;
+			double mean = 0.0;
+			for (int k = 0; (k < length); k++) {
+				mean += ip.getf(k);
+			}
+			mean /= length;
+			final double[] re = spectrum[0];
+			final double[] im = spectrum[1];
+			Arrays.fill(re, 0.0);
+			Arrays.fill(im, 0.0);
+			for (int y = 0; (y < height); y++) {
+				for (int x = 0; (x < width); x++) {
+					final int xs = x + ox;
+					final int ys = y + oy;
+					if ((0 <= xs) && (xs < width) && (0 <= ys) && (ys < height)) {
+						re[y * fftWidth + x] = (ip.getf(ys * width + xs) - mean) * windowX[x] * windowY[y];
+					}
+				}
+			}
+			fft2D(re, im, fftWidth, fftHeight, false, workspace);
+		}
+
+		/*..................................................................*/
+		/* In-place 2D FFT, rows then columns; both sizes are powers of two.
+			The lines are copied into buffers of the workspace. */
+		static void fft2D (
+			final double[] re,
+			final double[] im,
+			final int width,
+			final int height,
+			final boolean inverse,
+			final Workspace workspace
+		) {
+			final double[][] row = workspace.getFourier(Workspace.ROWS, width);
+			final double[] rowRe = row[0];
+			final double[] rowIm = row[1];
+			for (int y = 0; (y < height); y++) {
+				System.arraycopy(re, y * width, rowRe, 0, width);
+				System.arraycopy(im, y * width, rowIm, 0, width);
+				fft1D(rowRe, rowIm, inverse);
+				System.arraycopy(rowRe, 0, re, y * width, width);
+				System.arraycopy(rowIm, 0, im, y * width, width);
+			}
+			final double[][] column = workspace.getFourier(Workspace.COLUMNS, height);
+			final double[] columnRe = column[0];
+			final double[] columnIm = column[1];
+			for (int x = 0; (x < width); x++) {
+				for (int y = 0; (y < height); y++) {
+					columnRe[y] = re[y * width + x];
+					columnIm[y] = im[y * width + x];
+				}
+				fft1D(columnRe, columnIm, inverse);
+				for (int y = 0; (y < height); y++) {
+					re[y * width + x] = columnRe[y];
+					im[y * width + x] = columnIm[y];
+				}
+			}
+		}
+
+		/*..................................................................*/
+		/* Iterative radix-2 Cooley-Tukey transform, unnormalized. */
+		static void fft1D (
+			final double[] re,
+			final double[] im,
+			final boolean inverse
+		) {
+			final int n = re.length;
+			for (int i = 1, j = 0; (i < n); i++) {
+				int bit = n >> 1;
+				for (; ((j & bit) != 0); bit >>= 1) {
+					j ^= bit;
+				}
+				j ^= bit;
+				if (i < j) {
+					double swap = re[i];
+					re[i] = re[j];
+					re[j] = swap;
+					swap = im[i];
+					im[i] = im[j];
+					im[j] = swap;
+				}
+			}
+			for (int length = 2; (length <= n); length <<= 1) {
+				final double angle = ((inverse) ? (2.0) : (-2.0)) * Math.PI / length;
+				final double wRe = Math.cos(angle);
+				final double wIm = Math.sin(angle);
+				for (int i = 0; (i < n); i += length) {
+					double uRe = 1.0;
+					double uIm = 0.0;
+					for (int k = 0; (k < length / 2); k++) {
+						final int a = i + k;
+						final int b = a + length / 2;
+						final double tRe = re[b] * uRe - im[b] * uIm;
+						final double tIm = re[b] * uIm + im[b] * uRe;
+						re[b] = re[a] - tRe;
+						im[b] = im[a] - tIm;
+						re[a] += tRe;
+						im[a] += tIm;
+						final double next = uRe * wRe - uIm * wIm;
+						uIm = uRe * wIm + uIm * wRe;
+						uRe = next;
+					}
+				}
+			}
+		}
+	} /* end class PhaseCorrelationAligner */
+
+/*------------------------------------------------------------------*/
+/* Buffers that the registration of one chain reuses from frame to frame:
+	gray frames, pyramid levels, gradients, spectra, landmarks, a scratch
+	matrix and the normal equations of a Gauss-Newton step. They are allocated by the first frames and only again if the
+	frame size changes. A chain runs on one thread, so each worker thread
+	has its own.
+	The workspace also remembers the pixels of the last source an aligner
+	has seen, so that what the aligner derived from them can be reused when
+	they come back as the target; handing out their buffer again forgets them. */
+	private static class Workspace {
+		static final int SOURCE = 0;
+		static final int TARGET = 1;
+		static final int CROSS = 2;
+		static final int CORRELATION = 3;
+		static final int ROWS = 4;
+		static final int COLUMNS = 5;
+		static final int ERROR_GRADIENT = 0;
+		static final int JACOBIAN = 1;
+		static final int TRIAL = 2;
+		final double[][] sourcePoints = new double[3][2];
+		final double[][] targetPoints = new double[3][2];
+		final double[][] matrix = new double[3][3];
+		private final float[][] gray = new float[3][];
+		private final FloatProcessor[] converted = new FloatProcessor[2];
+		private final float[][][] pyramids = new float[2][][];
+		private float[][][] gradients = new float[0][][];
+		private final double[][][] fourier = new double[6][][];
+		private double[][] hessian = new double[0][];
+		private final double[][] steps = new double[3][];
+		private Object lastSource = null;
+
+		/*..................................................................*/
+		/* Gray frame of length pixels, in the first buffer that holds neither
+			keep nor alsoKeep, the frames the next registration still needs. */
+		float[] getGray (
+			final int length,
+			final Object keep,
+			final Object alsoKeep
+		) {
+			int n = 0;
+			while ((gray[n] != null) && ((gray[n] == keep) || (gray[n] == alsoKeep))) {
+				n++;
+			}
+			if ((gray[n] == null) || (gray[n].length != length)) {
+				gray[n] = new float[length];
+			}
+			if (lastSource == gray[n]) {
+				lastSource = null;
+			}
+			return(gray[n]);
+		}
+
+		/*..................................................................*/
+		void setLastSource (
+			final Object pixels
+		) {
+			lastSource = pixels;
+		}
+
+		/*..................................................................*/
+		boolean isLastSource (
+			final Object pixels
+		) {
+			return((pixels != null) && (pixels == lastSource));
+		}
+
+		/*..................................................................*/
+		/* The pyramid of the last source becomes the pyramid of the target. */
+		float[][] swapPyramids (
+		) {
+			final float[][] pyramid = pyramids[SOURCE];
+			pyramids[SOURCE] = pyramids[TARGET];
+			pyramids[TARGET] = pyramid;
+			final FloatProcessor fp = converted[SOURCE];
+			converted[SOURCE] = converted[TARGET];
+			converted[TARGET] = fp;
+			return(pyramid);
+		}
+
+		/*..................................................................*/
+		/* Pyramid of ip, for the SOURCE or the TARGET. Level 0 is the float
+			pixels of ip, converted into a buffer unless ip is float already. */
+		float[][] getPyramid (
+			final int which,
+			final ImageProcessor ip,
+			final int width,
+			final int height
+		) {
+			final int levels = PyramidAligner.getLevels(width, height);
+			float[][] pyramid = pyramids[which];
+			if ((pyramid == null) || (pyramid.length != levels)
+				|| (pyramid[levels - 1].length != (width >> (levels - 1)) * (height >> (levels - 1)))) {
+				pyramid = new float[levels][];
+				for (int level = 1; (level < levels); level++) {
+					pyramid[level] = new float[(width >> level) * (height >> level)];
+				}
+				pyramids[which] = pyramid;
+			}
+			if (ip instanceof FloatProcessor) {
+				pyramid[0] = (float[])ip.getPixels();
+			}
+			else {
+				converted[which] = ip.toFloat(0, converted[which]);
+				pyramid[0] = (float[])converted[which].getPixels();
+			}
+			PyramidAligner.fillPyramid(pyramid, width, height);
+			return(pyramid);
+		}
+
+		/*..................................................................*/
+		/* Gradient buffers, {d/dx, d/dy}, of pyramid level level. */
+		float[][] getGradient (
+			final int level,
+			final int length
+		) {
+			if (gradients.length <= level) {
+				final float[][][] more = new float[level + 1][][];
+				System.arraycopy(gradients, 0, more, 0, gradients.length);
+				gradients = more;
+			}
+			if ((gradients[level] == null) || (gradients[level][0].length != length)) {
+				gradients[level] = new float[2][length];
+			}
+			return(gradients[level]);
+		}
+
+		/*..................................................................*/
+		/* Real and imaginary buffers, {re, im}, of length values: the
+			SOURCE or TARGET spectrum, the CROSS-power spectrum, the
+			CORRELATION, or the ROWS or COLUMNS of an FFT. */
+		double[][] getFourier (
+			final int which,
+			final int length
+		) {
+			if ((fourier[which] == null) || (fourier[which][0].length != length)) {
+				fourier[which] = new double[2][length];
+			}
+			return(fourier[which]);
+		}
+
+		/*..................................................................*/
+		/* Hessian of a Gauss-Newton step with n parameters, cleared. */
+		double[][] getHessian (
+			final int n
+		) {
+			if (hessian.length != n) {
+				hessian = new double[n][n];
+			}
+			for (int k = 0; (k < n); k++) {
+				Arrays.fill(hessian[k], 0.0);
+			}
+			return(hessian);
+		}
+
+		/*..................................................................*/
+		/* The ERROR_GRADIENT, a row of the JACOBIAN or the TRIAL parameters
+			of a Gauss-Newton step with n parameters, cleared. */
+		double[] getStep (
+			final int which,
+			final int n
+		) {
+			if ((steps[which] == null) || (steps[which].length != n)) {
+				steps[which] = new double[n];
+			}
+			Arrays.fill(steps[which], 0.0);
+			return(steps[which]);
+		}
+	} /* end class Workspace */
+
+/*------------------------------------------------------------------*/
+/* One unit of work of forEachIndex. */
+	private interface IndexedTask {
+		boolean run (int n);
+	} /* end interface IndexedTask */
+
+/*------------------------------------------------------------------*/
+/* Binary transformation file with one fixed-size record per (Z, T), laid
+	out slice after slice. The record of any slice and frame sits at a known
+	offset, so it is read back with one positioned read, whatever the order
+	in which the transformations were computed. A record holds the landmarks
+	of the pairwise registration and the transform composed from the target
+	frame, so any plane can be warped without replaying its chain. Its flag
+	tells whether the frame was registered, skipped or interpolated. */
+	private static class TransformStore {
+		private static final int MAGIC = 0x48535254; // "HSRT"
+		private static final int HEADER_SIZE = 32;
+		private static final int RECORD_SIZE = 184;
+		private static final int POINTS = 3;
+		static final int REGISTERED = 1;
+		static final int SKIPPED = 2;
+		static final int INTERPOLATED = 3;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final int numSl, numFr, transformation;
+		// every thread reads and writes its records through a buffer of its own
+		private final ThreadLocal<ByteBuffer> records = new ThreadLocal<ByteBuffer>() {
+			protected ByteBuffer initialValue() {
+				return(ByteBuffer.allocate(RECORD_SIZE));
+			}
+		};
+
+		/*..................................................................*/
+		TransformStore (
+			final String path,
+			final int numSl,
+			final int numFr,
+			final int transformation
+		) throws IOException {
+			this.numSl = numSl;
+			this.numFr = numFr;
+			this.transformation = transformation;
+			new File(path).delete();
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(RECORD_SIZE).putInt(numSl).putInt(numFr).putInt(transformation);
+			header.rewind();
+			channel.write(header, 0L);
+			// every record starts out empty (flag 0)
+			file.setLength(HEADER_SIZE + (long)numSl * numFr * RECORD_SIZE);
+		}
+
+		/*..................................................................*/
+		private long getOffset (
+			final int z,
+			final int t
+		) {
+			return(HEADER_SIZE + ((long)(z - 1) * numFr + (t - 1)) * RECORD_SIZE);
+		}
+
+		/*..................................................................*/
+		void write (
+			final int z,
+			final int t,
+			final int flag,
+			final int targetID,
+			final double[][] src,
+			final double[][] tgt,
+			final double[][] global
+		) throws IOException {
+			final ByteBuffer record = records.get();
+			record.clear();
+			record.putInt(flag).putInt(t).putInt(targetID).putInt(0);
+			for (int i = 0; (i < POINTS); i++) {
+				record.putDouble(src[i][0]).putDouble(src[i][1]);
+			}
+			for (int i = 0; (i < POINTS); i++) {
+				record.putDouble(tgt[i][0]).putDouble(tgt[i][1]);
+			}
+			for (int i = 0; (i < 3); i++) {
+				record.putDouble(global[i][0]).putDouble(global[i][1]).putDouble(global[i][2]);
+			}
+			record.rewind();
+			channel.write(record, getOffset(z, t));
+		}
+
+		/*..................................................................*/
+		boolean read (
+			final int z,
+			final int t,
+			final double[][] src,
+			final double[][] tgt
+		) throws IOException {
+			final ByteBuffer record = records.get();
+			record.clear();
+			channel.read(record, getOffset(z, t));
+			record.rewind();
+			if (record.getInt() == 0) {
+				return(false);
+			}
+			record.position(16);
+			for (int i = 0; (i < POINTS); i++) {
+				src[i][0] = record.getDouble();
+				src[i][1] = record.getDouble();
+			}
+			for (int i = 0; (i < POINTS); i++) {
+				tgt[i][0] = record.getDouble();
+				tgt[i][1] = record.getDouble();
+			}
+			return(true);
+		}
+
+		/*..................................................................*/
+		int readFlag (
+			final int z,
+			final int t
+		) throws IOException {
+			final ByteBuffer flag = records.get();
+			flag.clear().limit(4);
+			channel.read(flag, getOffset(z, t));
+			return(flag.getInt(0));
+		}
+
+		/*..................................................................*/
+		boolean readGlobal (
+			final int z,
+			final int t,
+			final double[][] global
+		) throws IOException {
+			final ByteBuffer record = records.get();
+			record.clear();
+			channel.read(record, getOffset(z, t));
+			record.rewind();
+			if (record.getInt() == 0) {
+				return(false);
+			}
+			record.position(16 + 2 * POINTS * 16);
+			for (int i = 0; (i < 3); i++) {
+				global[i][0] = record.getDouble();
+				global[i][1] = record.getDouble();
+				global[i][2] = record.getDouble();
+			}
+			return(true);
+		}
+
+		/*..................................................................*/
+		/* Writes the records in the order of the text files of the earlier
+			versions: for each Z, the frames before the target frame going
+			backward, then the frames after it going forward. */
+		void exportText (
+			final String path,
+			final String[] header,
+			final int targetFrame
+		) throws IOException {
+			final double[][] src = new double[POINTS][2];
+			final double[][] tgt = new double[POINTS][2];
+			final ByteBuffer ids = ByteBuffer.allocate(12);
+			final BufferedWriter bw = new BufferedWriter(new FileWriter(path));
+			try {
+				for (int i = 0; (i < header.length); i++) {
+					bw.write(header[i] + "\n");
+				}
+				for (int z = 1; (z <= numSl); z++) {
+					for (int n = 1; (n < numFr); n++) {
+						final int t = (n < targetFrame) ? (targetFrame - n) : (n + 1);
+						if (!read(z, t, src, tgt)) {
+							continue;
+						}
+						ids.clear();
+						channel.read(ids, getOffset(z, t));
+						appendTransform(bw, ids.getInt(4), ids.getInt(8), src, tgt, transformation);
+					}
+				}
+			} finally {
+				bw.close();
+			}
+		}
+
+		/*..................................................................*/
+		void close (
+		) {
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+		}
+	} /* end class TransformStore */
+
+/*------------------------------------------------------------------*/
+/* One Z-slice of the hyperstack as a time series, read from the original
+	stack frame by frame when ImageJ asks for it. With a single channel the
+	frame is the original plane; with several, the channels are rendered
+	through their LUTs and display ranges and added up to RGB, as in the
+	composite display that flattenStack used to copy.
+	The frames are made in buffers of the reading thread that are reused
+	from frame to frame: a frame stays valid until the same thread has read
+	two more, unless it is kept. */
+	private static class ProxyStack extends VirtualStack {
+		private final ImagePlus imp;
+		private final int[] channels;
+		private final LUT[] luts;
+		static final int NO_PROJECTION = 0;
+		static final int MAX_PROJECTION = 1;
+		static final int MEAN_PROJECTION = 2;
+		private static final int OUTPUT = -1;
+		private static final int PLANE = 0;
+		private static final int SLICE = 1;
+		private static final int COLORS = 2;
+		private static final int FRAME = 3;
+		private final int z;
+		private final int projection;
+		private final Rectangle rect;
+		private final int binning;
+		private double[] weights;
+		private Map<Integer, ImageProcessor> sharedPlanes = null;
+		private int unsharedFrame = 0;
+		private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+			protected Buffers initialValue() {
+				return(new Buffers(imp.getNChannels()));
+			}
+		};
+
+		/* Buffers of one reading thread: the frames handed out, of which
+			the last one and the kept one are not written over, the scratch
+			the frames are made from, and the colors of every channel. */
+		private static class Buffers {
+			final Object[] frames = new Object[3];
+			final Object[] scratch = new Object[4];
+			Object last = null;
+			Object kept = null;
+			float[][] sums = new float[0][];
+			final Object[] keys;
+			final double[][] ranges;
+			final int[][] colors;
+
+			Buffers(final int numChannels) {
+				keys = new Object[numChannels];
+				ranges = new double[numChannels][2];
+				colors = new int[numChannels][];
+			}
+		}
+
+		ProxyStack(final ImagePlus imp, final int[] channels, final LUT[] luts, final int z,
+			final int projection, final Rectangle rect, final int binning) {
+			super(rect.width / binning, rect.height / binning, imp.getNFrames(),
+				((channels.length > 1) || ((imp.getType() == ImagePlus.COLOR_256)
+				&& ((binning > 1) || (projection != NO_PROJECTION)))) ? "RGB" : bitDepthOption(imp.getBitDepth()));
+			this.imp = imp;
+			this.channels = channels;
+			this.luts = luts;
+			this.z = z;
+			this.projection = projection;
+			this.rect = rect;
+			this.binning = binning;
+		}
+		/*..................................................................*/
+		/* From now on, the channels are added up with these weights, at their
+			own bit depth, into a 32-bit frame instead of an RGB one. */
+		void setWeights(final double[] weights) {
+			this.weights = weights;
+			setBitDepth(32);
+		}
+		/*..................................................................*/
+		/* From now on, every plane read from the input is also put into planes,
+			by stack index, except those of frame t, which is read more than once. */
+		void sharePlanes(final Map<Integer, ImageProcessor> planes, final int t) {
+			sharedPlanes = planes;
+			unsharedFrame = t;
+		}
+		/*..................................................................*/
+		/* The frame with these pixels, read by this thread, is still needed;
+			the next frames are not written over it until another one is kept. */
+		void keep(final Object pixels) {
+			buffers.get().kept = pixels;
+		}
+		/*..................................................................*/
+		/* Weights that give every channel the same standard deviation in
+			frame t, so that a dim channel counts as much as a bright one. */
+		double[] getNormalizingWeights(final int t) {
+			final double[] normalizing = new double[channels.length];
+			for (int i = 0; (i < channels.length); i++) {
+				final ImageProcessor ip = getPlane(channels[i], t, buffers.get(), PLANE);
+				final int length = ip.getPixelCount();
+				double sum = 0.0;
+				double sumOfSquares = 0.0;
+				for (int k = 0; (k < length); k++) {
+					final float value = ip.getf(k);
+					sum += value;
+					sumOfSquares += (double)value * value;
+				}
+				final double mean = sum / length;
+				final double deviation = Math.sqrt(Math.max(0.0, sumOfSquares / length - mean * mean));
+				normalizing[i] = (deviation > 0.0) ? (1.0 / deviation) : 0.0;
+			}
+			return(normalizing);
+		}
+		/*..................................................................*/
+		private static String bitDepthOption(final int bitDepth) {
+			switch (bitDepth) {
+				case 16: return("16-bit");
+				case 24: return("RGB");
+				case 32: return("32-bit");
+				default: return("8-bit");
+			}
+		}
+		/*..................................................................*/
+		public ImageProcessor getProcessor(final int t) {
+			final Buffers b = buffers.get();
+			if (binning == 1)
+				return(getFrame(t, b, OUTPUT));
+			ImageProcessor ip = getFrame(t, b, FRAME);
+			// indexed colors cannot be averaged, so they are binned as RGB
+			if ((imp.getType() == ImagePlus.COLOR_256) && !(ip instanceof ColorProcessor))
+				ip = toRGB(ip, channels[0] - 1, b, COLORS);
+			return(bin(ip, b));
+		}
+		/*..................................................................*/
+		private ImageProcessor getFrame(final int t, final Buffers b, final int slot) {
+			if (channels.length == 1)
+				return(getPlane(channels[0], t, b, slot));
+			final int length = rect.width * rect.height;
+			if (weights != null) {
+				final float[] sum = (float[])getPixels(b, slot, 32, length);
+				Arrays.fill(sum, 0.0F);
+				for (int i = 0; (i < channels.length); i++) {
+					final ImageProcessor ip = getPlane(channels[i], t, b, PLANE);
+					final float w = (float)weights[i];
+					for (int k = 0; (k < length); k++) {
+						sum[k] += w * ip.getf(k);
+					}
+				}
+				return(new FloatProcessor(rect.width, rect.height, sum));
+			}
+			final int[] merged = (int[])getPixels(b, slot, 24, length);
+			Arrays.fill(merged, 0);
+			for (int i = 0; (i < channels.length); i++) {
+				final ImageProcessor ip = getPlane(channels[i], t, b, PLANE);
+				final LUT lut = luts[Math.min(channels[i], luts.length) - 1];
+				ip.setLut(lut);
+				final int[] colors = getColors(b, channels[i] - 1, ip, lut);
+				final Object pixels = ip.getPixels();
+				final double min = ip.getMin();
+				final double scale = 255.0 / (ip.getMax() - min);
+				for (int k = 0; (k < length); k++) {
+					final int a = merged[k];
+					final int c = colors[getColorIndex(pixels, k, min, scale)];
+					final int r = Math.min(((a >> 16) & 0xFF) + ((c >> 16) & 0xFF), 255);
+					final int g = Math.min(((a >> 8) & 0xFF) + ((c >> 8) & 0xFF), 255);
+					final int bl = Math.min((a & 0xFF) + (c & 0xFF), 255);
+					merged[k] = 0xFF000000 | (r << 16) | (g << 8) | bl;
+				}
+			}
+			return(new ColorProcessor(rect.width, rect.height, merged));
+		}
+		/*..................................................................*/
+		/* Plane of channel c at frame t, or its Z projection; a projection
+			keeps the type of the planes, and indexed colors are projected as RGB. */
+		private ImageProcessor getPlane(final int c, final int t, final Buffers b, final int slot) {
+			if (projection == NO_PROJECTION)
+				return(crop(readPlane(c, z, t), b, slot));
+			final int numSl = imp.getNSlices();
+			final int length = rect.width * rect.height;
+			ImageProcessor plane = null;
+			for (int k = 0; (k < numSl); k++) {
+				plane = crop(readPlane(c, k + 1, t), b, SLICE);
+				if (imp.getType() == ImagePlus.COLOR_256)
+					plane = toRGB(plane, c - 1, b, COLORS);
+				final int[] rgb = (plane instanceof ColorProcessor) ? (int[])plane.getPixels() : null;
+				final float[][] sums = getSums(b, plane.getNChannels(), length);
+				for (int channel = 0; (channel < sums.length); channel++) {
+					final float[] sum = sums[channel];
+					final int shift = 16 - 8 * channel;
+					for (int i = 0; (i < length); i++) {
+						final float value = (rgb == null) ? plane.getf(i) : (float)((rgb[i] >> shift) & 0xFF);
+						sum[i] = (k == 0) ? value
+							: (projection == MAX_PROJECTION) ? Math.max(sum[i], value) : sum[i] + value;
+					}
+				}
+			}
+			final ImageProcessor ip = wrap(plane, getPixels(b, slot, plane.getBitDepth(), length), rect.width, rect.height);
+			if (ip instanceof ColorProcessor)
+				Arrays.fill((int[])ip.getPixels(), 0);
+			for (int channel = 0; (channel < ip.getNChannels()); channel++) {
+				final float[] sum = b.sums[channel];
+				if (projection == MEAN_PROJECTION) {
+					for (int i = 0; (i < length); i++) {
+						sum[i] /= numSl;
+					}
+				}
+				if (ip instanceof FloatProcessor) {
+					// setPixels would hand out the sum buffer itself
+					System.arraycopy(sum, 0, (float[])ip.getPixels(), 0, length);
+					ip.resetMinAndMax();
+				}
+				else {
+					ip.setPixels(channel, new FloatProcessor(rect.width, rect.height, sum));
+				}
+			}
+			return(ip);
+		}
+		/*..................................................................*/
+		/* Plane (c, z, t) of the input; a shared plane is handed out as a
+			shallow copy, so that setting its LUT does not change the shared one. */
+		private ImageProcessor readPlane(final int c, final int z, final int t) {
+			final int index = imp.getStackIndex(c, z, t);
+			final ImageProcessor ip = imp.getStack().getProcessor(index);
+			if ((sharedPlanes == null) || (t == unsharedFrame))
+				return(ip);
+			sharedPlanes.put(index, ip);
+			return((ImageProcessor)ip.clone());
+		}
+		/*..................................................................*/
+		private ImageProcessor crop(final ImageProcessor ip, final Buffers b, final int slot) {
+			if ((rect.width == imp.getWidth()) && (rect.height == imp.getHeight()))
+				return(ip);
+			final Object pixels = getPixels(b, slot, ip.getBitDepth(), rect.width * rect.height);
+			for (int y = 0; (y < rect.height); y++) {
+				System.arraycopy(ip.getPixels(), (rect.y + y) * ip.getWidth() + rect.x, pixels, y * rect.width, rect.width);
+			}
+			return(wrap(ip, pixels, rect.width, rect.height));
+		}
+		/*..................................................................*/
+		/* ip binned by averaging binning x binning blocks, the way
+			ImageProcessor.bin does; RGB is averaged component by component. */
+		private ImageProcessor bin(final ImageProcessor ip, final Buffers b) {
+			final int width = ip.getWidth() / binning;
+			final int height = ip.getHeight() / binning;
+			final ImageProcessor binned = wrap(ip, getPixels(b, OUTPUT, ip.getBitDepth(), width * height), width, height);
+			final float n = (float)(binning * binning);
+			if (ip instanceof ColorProcessor) {
+				final int[] pixels = (int[])ip.getPixels();
+				final int[] averages = (int[])binned.getPixels();
+				for (int y = 0; (y < height); y++) {
+					for (int x = 0; (x < width); x++) {
+						float r = 0.0F;
+						float g = 0.0F;
+						float bl = 0.0F;
+						for (int y2 = 0; (y2 < binning); y2++) {
+							for (int x2 = 0; (x2 < binning); x2++) {
+								final int c = pixels[(y * binning + y2) * ip.getWidth() + x * binning + x2];
+								r += (float)((c >> 16) & 0xFF);
+								g += (float)((c >> 8) & 0xFF);
+								bl += (float)(c & 0xFF);
+							}
+						}
+						averages[y * width + x] = ((((int)(r / n + 0.5F)) & 0xFF) << 16)
+							| ((((int)(g / n + 0.5F)) & 0xFF) << 8) | (((int)(bl / n + 0.5F)) & 0xFF);
+					}
+				}
+				return(binned);
+			}
+			for (int y = 0; (y < height); y++) {
+				for (int x = 0; (x < width); x++) {
+					float sum = 0.0F;
+					for (int y2 = 0; (y2 < binning); y2++) {
+						for (int x2 = 0; (x2 < binning); x2++) {
+							sum += ip.getf(x * binning + x2, y * binning + y2);
+						}
+					}
+					binned.setf(x, y, sum / n);
+				}
+			}
+			return(binned);
+		}
+		/*..................................................................*/
+		/* The indexed colors of ip as RGB, the way convertToRGB shows them. */
+		private ImageProcessor toRGB(final ImageProcessor ip, final int c, final Buffers b, final int slot) {
+			final int[] colors = getColors(b, c, ip, ip.getColorModel());
+			final byte[] values = (byte[])ip.getPixels();
+			final int[] rgb = (int[])getPixels(b, slot, 24, values.length);
+			for (int k = 0; (k < values.length); k++) {
+				rgb[k] = colors[values[k] & 0xFF];
+			}
+			return(new ColorProcessor(ip.getWidth(), ip.getHeight(), rgb));
+		}
+		/*..................................................................*/
+		/* RGB of every value of an 8-bit or 16-bit plane of channel c, or of
+			every 8-bit value a 32-bit plane is scaled to, as convertToRGB gives
+			it with the colors key and the display range of ip. The table stays
+			as long as they do. */
+		private static int[] getColors(final Buffers b, final int c, final ImageProcessor ip, final Object key) {
+			if ((b.colors[c] != null) && (b.keys[c] == key)
+				&& (b.ranges[c][0] == ip.getMin()) && (b.ranges[c][1] == ip.getMax()))
+				return(b.colors[c]);
+			final ImageProcessor ramp;
+			if (ip instanceof ShortProcessor) {
+				final short[] values = new short[65536];
+				for (int k = 0; (k < values.length); k++) {
+					values[k] = (short)k;
+				}
+				ramp = new ShortProcessor(256, 256, values, ip.getColorModel());
+				ramp.setMinAndMax(ip.getMin(), ip.getMax());
+			}
+			else {
+				final byte[] values = new byte[256];
+				for (int k = 0; (k < values.length); k++) {
+					values[k] = (byte)k;
+				}
+				// the current colors of an 8-bit plane already hold its display range
+				ramp = new ByteProcessor(256, 1, values,
+					(ip instanceof ByteProcessor) ? ip.getCurrentColorModel() : ip.getColorModel());
+			}
+			b.colors[c] = (int[])ramp.convertToRGB().getPixels();
+			b.keys[c] = key;
+			b.ranges[c][0] = ip.getMin();
+			b.ranges[c][1] = ip.getMax();
+			return(b.colors[c]);
+		}
+		/*..................................................................*/
+		/* Index of pixel k into the table of getColors; a 32-bit value is
+			scaled to 8 bits from min, by scale, as create8BitImage does. */
+		private static int getColorIndex(final Object pixels, final int k, final double min, final double scale) {
+			if (pixels instanceof byte[])
+				return(((byte[])pixels)[k] & 0xFF);
+			if (pixels instanceof short[])
+				return(((short[])pixels)[k] & 0xFFFF);
+			double value = (double)((float[])pixels)[k] - min;
+			if (value < 0.0)
+				value = 0.0;
+			return(Math.min((int)(value * scale + 0.5), 255));
+		}
+		/*..................................................................*/
+		/* Processor around pixels with the colors and display range of ip,
+			as ip.createProcessor would make it. */
+		private static ImageProcessor wrap(final ImageProcessor ip, final Object pixels, final int width, final int height) {
+			if (pixels instanceof byte[])
+				return(new ByteProcessor(width, height, (byte[])pixels, ip.getColorModel()));
+			if (pixels instanceof int[])
+				return(new ColorProcessor(width, height, (int[])pixels));
+			final ImageProcessor wrapped = (pixels instanceof short[])
+				? new ShortProcessor(width, height, (short[])pixels, ip.getColorModel())
+				: new FloatProcessor(width, height, (float[])pixels, ip.getColorModel());
+			wrapped.setMinAndMax(ip.getMin(), ip.getMax());
+			return(wrapped);
+		}
+		/*..................................................................*/
+		/* Pixels of bitDepth bits, length long: a frame buffer that is neither
+			the last one handed out nor the kept one if slot is OUTPUT, the
+			scratch buffer slot otherwise. */
+		private static Object getPixels(final Buffers b, final int slot, final int bitDepth, final int length) {
+			if (slot != OUTPUT) {
+				if (!hasPixels(b.scratch[slot], bitDepth, length))
+					b.scratch[slot] = newPixels(bitDepth, length);
+				return(b.scratch[slot]);
+			}
+			int n = 0;
+			while ((b.frames[n] != null) && ((b.frames[n] == b.last) || (b.frames[n] == b.kept))) {
+				n++;
+			}
+			if (!hasPixels(b.frames[n], bitDepth, length))
+				b.frames[n] = newPixels(bitDepth, length);
+			b.last = b.frames[n];
+			return(b.frames[n]);
+		}
+		/*..................................................................*/
+		private static boolean hasPixels(final Object pixels, final int bitDepth, final int length) {
+			switch (bitDepth) {
+				case 8: return((pixels instanceof byte[]) && (((byte[])pixels).length == length));
+				case 16: return((pixels instanceof short[]) && (((short[])pixels).length == length));
+				case 32: return((pixels instanceof float[]) && (((float[])pixels).length == length));
+				default: return((pixels instanceof int[]) && (((int[])pixels).length == length));
+			}
+		}
+		/*..................................................................*/
+		private static Object newPixels(final int bitDepth, final int length) {
+			switch (bitDepth) {
+				case 8: return(new byte[length]);
+				case 16: return(new short[length]);
+				case 32: return(new float[length]);
+				default: return(new int[length]);
+			}
+		}
+		/*..................................................................*/
+		/* Sum buffers of length values for numChannels channels. */
+		private static float[][] getSums(final Buffers b, final int numChannels, final int length) {
+			if ((b.sums.length != numChannels) || (b.sums[0].length != length))
+				b.sums = new float[numChannels][length];
+			return(b.sums);
+		}
+	} /* end class ProxyStack */
+
+/*------------------------------------------------------------------*/
+/* Uncompressed TIFF written the way ImageJ writes stacks larger than 4 GB:
+	one IFD whose ImageJ description gives the number of images and the
+	hyperstack dimensions, followed by all planes back to back. The offset
+	of every plane is known up front, so planes can be written in any order
+	through the file channel and none of them has to stay in memory. */
+	private static class TiffStackWriter {
+		private static final int HDR_SIZE = 8;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final int width, height, bitDepth;
+		private final long planeSize, imageOffset;
+
+		/*..................................................................*/
+		TiffStackWriter (
+			final String path,
+			final int width,
+			final int height,
+			final int bitDepth,
+			final int numCh,
+			final int numSl,
+			final int numFr
+		) throws IOException {
+			this.width = width;
+			this.height = height;
+			this.bitDepth = bitDepth;
+			final int nImages = numCh * numSl * numFr;
+			final int bytesPerPixel = (bitDepth == 24) ? 3 : bitDepth / 8;
+			planeSize = (long)width * height * bytesPerPixel;
+			String info = "ImageJ=" + IJ.getVersion() + "\n"
+				+ "images=" + nImages + "\n";
+			if (numCh > 1 && bitDepth != 24) // ImageJ opens RGB channels as a composite image, which it does not support
+				info += "channels=" + numCh + "\n";
+			if (numSl > 1)
+				info += "slices=" + numSl + "\n";
+			if (numFr > 1)
+				info += "frames=" + numFr + "\n";
+			info += "hyperstack=true\n";
+			if (numCh > 1 && bitDepth != 24)
+				info += "mode=composite\n";
+			info += "loop=false\n";
+			final byte[] description = (info + "\0").getBytes("ISO-8859-1");
+			final int nEntries = (bitDepth == 32) ? 12 : 11;
+			final int ifdSize = 2 + nEntries * 12 + 4;
+			final int bpsSize = (bitDepth == 24) ? 6 : 0;
+			final long descriptionOffset = HDR_SIZE + ifdSize + bpsSize;
+			imageOffset = descriptionOffset + description.length;
+			final ByteBuffer header = ByteBuffer.allocate((int)imageOffset);
+			header.put((byte)'M').put((byte)'M').putShort((short)42).putInt(HDR_SIZE);
+			header.putShort((short)nEntries);
+			putEntry(header, 254, 4, 1, 0); // NewSubfileType
+			putEntry(header, 256, 4, 1, width);
+			putEntry(header, 257, 4, 1, height);
+			if (bitDepth == 24)
+				putEntry(header, 258, 3, 3, HDR_SIZE + ifdSize); // BitsPerSample 8,8,8
+			else
+				putEntry(header, 258, 3, 1, bitDepth);
+			putEntry(header, 259, 3, 1, 1); // no compression
+			putEntry(header, 262, 3, 1, (bitDepth == 24) ? 2 : 1); // RGB or black is zero
+			putEntry(header, 270, 2, description.length, (int)descriptionOffset);
+			putEntry(header, 273, 4, 1, (int)imageOffset);
+			putEntry(header, 277, 3, 1, (bitDepth == 24) ? 3 : 1);
+			putEntry(header, 278, 4, 1, height);
+			putEntry(header, 279, 4, 1, (int)planeSize);
+			if (bitDepth == 32)
+				putEntry(header, 339, 3, 1, 3); // SampleFormat: floating point
+			header.putInt(0); // no next IFD
+			if (bitDepth == 24)
+				header.putShort((short)8).putShort((short)8).putShort((short)8);
+			header.put(description);
+			header.rewind();
+			new File(path).delete();
+			file = new RandomAccessFile(path, "rw");
+			channel = file.getChannel();
+			channel.write(header, 0L);
+			file.setLength(imageOffset + nImages * planeSize);
+		}
+
+		/*..................................................................*/
+		private static void putEntry (
+			final ByteBuffer buffer,
+			final int tag,
+			final int fieldType,
+			final int count,
+			final int value
+		) {
+			buffer.putShort((short)tag).putShort((short)fieldType).putInt(count);
+			if (count == 1 && fieldType == 3)
+				buffer.putShort((short)value).putShort((short)0);
+			else
+				buffer.putInt(value);
+		}
+
+		/*..................................................................*/
+		/* index is the 1-based stack index, as given by getStackIndex(c, z, t) */
+		void writePlane (
+			final int index,
+			final Object pixels
+		) throws IOException {
+			final ByteBuffer plane = ByteBuffer.allocate((int)planeSize);
+			switch (bitDepth) {
+				case 8: {
+					plane.put((byte[])pixels);
+					break;
+				}
+				case 16: {
+					plane.asShortBuffer().put((short[])pixels);
+					break;
+				}
+				case 32: {
+					plane.asFloatBuffer().put((float[])pixels);
+					break;
+				}
+				case 24: {
+					final int[] rgb = (int[])pixels;
+					for (int k = 0; (k < rgb.length); k++) {
+						plane.put((byte)(rgb[k] >> 16)).put((byte)(rgb[k] >> 8)).put((byte)rgb[k]);
+					}
+					break;
+				}
+			}
+			plane.rewind();
+			long position = imageOffset + (index - 1) * planeSize;
+			while (plane.hasRemaining()) {
+				position += channel.write(plane, position);
+			}
+		}
+
+		/*..................................................................*/
+		void close (
+		) throws IOException {
+			file.close();
+		}
+	} /* end class TiffStackWriter */
 } /* end class HyperStackReg_*/
 